@@ -1,25 +1,136 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.URI;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Formatter;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
 import java.util.logging.*;
 import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-class Configuration {
+class Configuration implements Cloneable {
 
-    int numberOfPreferredNeighbors;
-    int unchokingInterval;
-    int optimisticUnchokingInterval;
+    //A piece has to fit in a single int-length frame together with its type byte and index.
+    static final long MAX_PIECE_SIZE = Integer.MAX_VALUE - 16;
+
+    //Keys a running peer takes from Common.cfg edits or over JMX; the rest are read once at start.
+    static final List<String> TUNABLES = List.of("NumberOfPreferredNeighbors", "UnchokingInterval", "OptimisticUnchokingInterval",
+            "PipelineMinDepth", "PipelineMaxDepth", "RequestTimeout", "SnubThreshold", "PieceCacheSize", "ReadAheadPieces",
+            "MaxConnections", "TrackerInterval", "PexInterval", "WebSeedMinAvailability");
+
+    volatile int numberOfPreferredNeighbors;
+    volatile int unchokingInterval;
+    volatile int optimisticUnchokingInterval;
     String fileName;
-    int fileSize;
-    int pieceSize;
+    long fileSize;
+    long pieceSize;
+    long mappingWindowSize;
+    int maxMappedWindows;
+    int diskThreads;
+    int diskQueueCapacity;
+    int diskCoalesceLimit;
+    String diskSyncPolicy;
+    volatile long pieceCacheSize;
+    volatile int readAheadPieces;
+    boolean superSeeding;
+    int haveFlushInterval;
+    long arenaSize;
+    long memoryBudget;
+    volatile int pipelineMinDepth;
+    volatile int pipelineMaxDepth;
+    volatile int requestTimeout;
+    volatile int snubThreshold;
+    boolean streaming;
+    int streamingWindow;
+    int streamingDeadline;
+    String streamOutput;
+    String transport;
+    int udpTargetDelay;
+    double udpLossRate;
+    int udpDelay;
+    String tracker;
+    int trackerPeer;
+    volatile int trackerInterval;
+    int trackerNumWant;
+    volatile int maxConnections;
+    boolean peerExchange;
+    volatile int pexInterval;
+    String webSeed;
+    int webSeedConnections;
+    volatile int webSeedMinAvailability;
+    String traceFile;
+    int traceMaxSize;
+    boolean compression;
+    long compressionCacheSize;
+    String contentStore;
+    long contentStoreSize;
+    int erasureGroupSize;
+    int erasureRepairPieces;
 
     public Configuration() {
         this.numberOfPreferredNeighbors = 0;
@@ -27,6 +138,56 @@ class Configuration {
         this.optimisticUnchokingInterval = 0;
         this.fileSize = 0;
         this.pieceSize = 0;
+        this.mappingWindowSize = 1L << 30;
+        this.maxMappedWindows = 4;
+        this.diskThreads = 2;
+        this.diskQueueCapacity = 64;
+        this.diskCoalesceLimit = 16;
+        this.diskSyncPolicy = DiskWriter.SYNC_ON_COMPLETE;
+        this.pieceCacheSize = 64L << 20;
+        this.readAheadPieces = 4;
+        this.superSeeding = false;
+        this.haveFlushInterval = 100;
+        this.arenaSize = 128L << 20;
+        this.memoryBudget = 128L << 20;
+        this.pipelineMinDepth = 2;
+        this.pipelineMaxDepth = 64;
+        this.requestTimeout = 5000;
+        this.snubThreshold = 3;
+        this.streaming = false;
+        this.streamingWindow = 8;
+        this.streamingDeadline = 1000;
+        this.streamOutput = null;
+        this.transport = "tcp";
+        this.udpTargetDelay = 100;
+        this.udpLossRate = 0;
+        this.udpDelay = 0;
+        this.tracker = null;
+        this.trackerPeer = -1;
+        this.trackerInterval = 5;
+        this.trackerNumWant = 30;
+        this.maxConnections = 50;
+        this.peerExchange = false;
+        this.pexInterval = 10;
+        this.webSeed = null;
+        this.webSeedConnections = 4;
+        this.webSeedMinAvailability = 1;
+        this.traceFile = null;
+        this.traceMaxSize = 1024;
+        this.compression = false;
+        this.compressionCacheSize = 64L * 1024 * 1024;
+        this.contentStore = null;
+        this.contentStoreSize = 1024L * 1024 * 1024;
+        this.erasureGroupSize = 16;
+        this.erasureRepairPieces = 0;
+    }
+
+    public Configuration copy() {
+        try {
+            return (Configuration) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
     }
 
     public int getUnchokingInterval() {
@@ -37,11 +198,11 @@ class Configuration {
         return optimisticUnchokingInterval;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return this.fileSize;
     }
 
-    public int getPieceSize() {
+    public long getPieceSize() {
         return this.pieceSize;
     }
 
@@ -49,9 +210,463 @@ class Configuration {
         return numberOfPreferredNeighbors;
     }
 
+    public long getMappingWindowSize() {
+        return mappingWindowSize;
+    }
+
+    public int getMaxMappedWindows() {
+        return maxMappedWindows;
+    }
+
+    public int getDiskThreads() {
+        return diskThreads;
+    }
+
+    public int getDiskQueueCapacity() {
+        return diskQueueCapacity;
+    }
+
+    public int getDiskCoalesceLimit() {
+        return diskCoalesceLimit;
+    }
+
+    public String getDiskSyncPolicy() {
+        return diskSyncPolicy;
+    }
+
+    public long getPieceCacheSize() {
+        return pieceCacheSize;
+    }
+
+    public int getReadAheadPieces() {
+        return readAheadPieces;
+    }
+
+    public boolean isSuperSeeding() {
+        return superSeeding;
+    }
+
+    public int getHaveFlushInterval() {
+        return haveFlushInterval;
+    }
+
+    public long getArenaSize() {
+        return arenaSize;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public int getPipelineMinDepth() {
+        return pipelineMinDepth;
+    }
+
+    public int getPipelineMaxDepth() {
+        return pipelineMaxDepth;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public int getSnubThreshold() {
+        return snubThreshold;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public int getStreamingWindow() {
+        return streamingWindow;
+    }
+
+    public int getStreamingDeadline() {
+        return streamingDeadline;
+    }
+
+    public String getStreamOutput() {
+        return streamOutput;
+    }
+
+    public boolean isUdpTransport() {
+        return "udp".equals(transport);
+    }
+
+    public int getUdpTargetDelay() {
+        return udpTargetDelay;
+    }
+
+    public double getUdpLossRate() {
+        return udpLossRate;
+    }
+
+    public int getUdpDelay() {
+        return udpDelay;
+    }
+
+    public boolean hasTracker() {
+        return tracker != null;
+    }
+
+    public String getTrackerHost() {
+        return tracker.substring(0, tracker.lastIndexOf(':'));
+    }
+
+    public int getTrackerPort() {
+        return Integer.parseInt(tracker.substring(tracker.lastIndexOf(':') + 1));
+    }
+
+    public int getTrackerPeer() {
+        return trackerPeer;
+    }
+
+    public int getTrackerInterval() {
+        return trackerInterval;
+    }
+
+    public int getTrackerNumWant() {
+        return trackerNumWant;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public boolean isPeerExchange() {
+        return peerExchange;
+    }
+
+    public int getPexInterval() {
+        return pexInterval;
+    }
+
+    public String getWebSeed() {
+        return webSeed;
+    }
+
+    public int getWebSeedConnections() {
+        return webSeedConnections;
+    }
+
+    public int getWebSeedMinAvailability() {
+        return webSeedMinAvailability;
+    }
+
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public long getTraceMaxBytes() {
+        return traceMaxSize * 1024L * 1024L;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public long getCompressionCacheSize() {
+        return compressionCacheSize;
+    }
+
+    public String getContentStore() {
+        return contentStore;
+    }
+
+    public long getContentStoreSize() {
+        return contentStoreSize;
+    }
+
+    public int getErasureGroupSize() {
+        return erasureGroupSize;
+    }
+
+    public int getErasureRepairPieces() {
+        return erasureRepairPieces;
+    }
+
+    //The largest frame a well-behaved peer sends: a PIECE, or a HAVE batch or legacy bitfield covering every piece.
+    public long getMaxFrameSize() {
+        return Math.max(this.getPieceSize() + 5, 4L * this.getTotalPieces() + 1);
+    }
+
     public int getTotalPieces() {
-        int totalPieces = (int) Math.ceil((double) this.getFileSize() / this.getPieceSize());
-        return totalPieces;
+        return (int) ((this.getFileSize() + this.getPieceSize() - 1) / this.getPieceSize());
+    }
+
+    public long getPieceOffset(int pieceIndex) {
+        return pieceIndex * this.getPieceSize();
+    }
+
+    public int getPieceLength(int pieceIndex) {
+        return (int) Math.min(this.getPieceSize(), this.getFileSize() - getPieceOffset(pieceIndex));
+    }
+
+    //Common.cfg holds "Key Value" lines in any order; validate checks that the settings every peer needs are there.
+    public void setProperty(String key, String value) {
+        switch (key) {
+            case "NumberOfPreferredNeighbors":
+                this.numberOfPreferredNeighbors = Integer.parseInt(value);
+                break;
+            case "UnchokingInterval":
+                this.unchokingInterval = Integer.parseInt(value);
+                break;
+            case "OptimisticUnchokingInterval":
+                this.optimisticUnchokingInterval = Integer.parseInt(value);
+                break;
+            case "FileName":
+                this.fileName = value;
+                break;
+            case "FileSize":
+                this.fileSize = Long.parseLong(value);
+                break;
+            case "PieceSize":
+                this.pieceSize = Long.parseLong(value);
+                break;
+            case "MappingWindowSize":
+                this.mappingWindowSize = Long.parseLong(value);
+                break;
+            case "MaxMappedWindows":
+                this.maxMappedWindows = Integer.parseInt(value);
+                break;
+            case "DiskThreads":
+                this.diskThreads = Integer.parseInt(value);
+                break;
+            case "DiskQueueCapacity":
+                this.diskQueueCapacity = Integer.parseInt(value);
+                break;
+            case "DiskCoalesceLimit":
+                this.diskCoalesceLimit = Integer.parseInt(value);
+                break;
+            case "DiskSyncPolicy":
+                this.diskSyncPolicy = value.toLowerCase();
+                break;
+            case "PieceCacheSize":
+                this.pieceCacheSize = Long.parseLong(value);
+                break;
+            case "ReadAheadPieces":
+                this.readAheadPieces = Integer.parseInt(value);
+                break;
+            case "SuperSeeding":
+                this.superSeeding = Integer.parseInt(value) == 1;
+                break;
+            case "HaveFlushInterval":
+                this.haveFlushInterval = Integer.parseInt(value);
+                break;
+            case "ArenaSize":
+                this.arenaSize = Long.parseLong(value);
+                break;
+            case "MemoryBudget":
+                this.memoryBudget = Long.parseLong(value);
+                break;
+            case "PipelineMinDepth":
+                this.pipelineMinDepth = Integer.parseInt(value);
+                break;
+            case "PipelineMaxDepth":
+                this.pipelineMaxDepth = Integer.parseInt(value);
+                break;
+            case "RequestTimeout":
+                this.requestTimeout = Integer.parseInt(value);
+                break;
+            case "SnubThreshold":
+                this.snubThreshold = Integer.parseInt(value);
+                break;
+            case "Streaming":
+                this.streaming = Integer.parseInt(value) == 1;
+                break;
+            case "StreamingWindow":
+                this.streamingWindow = Integer.parseInt(value);
+                break;
+            case "StreamingDeadline":
+                this.streamingDeadline = Integer.parseInt(value);
+                break;
+            case "StreamOutput":
+                this.streamOutput = value;
+                break;
+            case "Transport":
+                this.transport = value.toLowerCase();
+                break;
+            case "UdpTargetDelay":
+                this.udpTargetDelay = Integer.parseInt(value);
+                break;
+            case "UdpLossRate":
+                this.udpLossRate = Double.parseDouble(value);
+                break;
+            case "UdpDelay":
+                this.udpDelay = Integer.parseInt(value);
+                break;
+            case "Tracker":
+                this.tracker = value;
+                break;
+            case "TrackerPeer":
+                this.trackerPeer = Integer.parseInt(value);
+                break;
+            case "TrackerInterval":
+                this.trackerInterval = Integer.parseInt(value);
+                break;
+            case "TrackerNumWant":
+                this.trackerNumWant = Integer.parseInt(value);
+                break;
+            case "MaxConnections":
+                this.maxConnections = Integer.parseInt(value);
+                break;
+            case "PeerExchange":
+                this.peerExchange = Integer.parseInt(value) == 1;
+                break;
+            case "PexInterval":
+                this.pexInterval = Integer.parseInt(value);
+                break;
+            case "WebSeed":
+                this.webSeed = value;
+                break;
+            case "WebSeedConnections":
+                this.webSeedConnections = Integer.parseInt(value);
+                break;
+            case "WebSeedMinAvailability":
+                this.webSeedMinAvailability = Integer.parseInt(value);
+                break;
+            case "TraceFile":
+                this.traceFile = value;
+                break;
+            case "TraceMaxSize":
+                this.traceMaxSize = Integer.parseInt(value);
+                break;
+            case "Compression":
+                this.compression = Integer.parseInt(value) == 1;
+                break;
+            case "CompressionCacheSize":
+                this.compressionCacheSize = Long.parseLong(value) * 1024 * 1024;
+                break;
+            case "ContentStore":
+                this.contentStore = value;
+                break;
+            case "ContentStoreSize":
+                this.contentStoreSize = Long.parseLong(value) * 1024 * 1024;
+                break;
+            case "ErasureGroupSize":
+                this.erasureGroupSize = Integer.parseInt(value);
+                break;
+            case "ErasureRepairPieces":
+                this.erasureRepairPieces = Integer.parseInt(value);
+                break;
+            default:
+                System.out.println("Ignoring unknown setting " + key);
+        }
+    }
+
+    public String getTunable(String key) {
+        switch (key) {
+            case "NumberOfPreferredNeighbors":
+                return String.valueOf(this.numberOfPreferredNeighbors);
+            case "UnchokingInterval":
+                return String.valueOf(this.unchokingInterval);
+            case "OptimisticUnchokingInterval":
+                return String.valueOf(this.optimisticUnchokingInterval);
+            case "PipelineMinDepth":
+                return String.valueOf(this.pipelineMinDepth);
+            case "PipelineMaxDepth":
+                return String.valueOf(this.pipelineMaxDepth);
+            case "RequestTimeout":
+                return String.valueOf(this.requestTimeout);
+            case "SnubThreshold":
+                return String.valueOf(this.snubThreshold);
+            case "PieceCacheSize":
+                return String.valueOf(this.pieceCacheSize);
+            case "ReadAheadPieces":
+                return String.valueOf(this.readAheadPieces);
+            case "MaxConnections":
+                return String.valueOf(this.maxConnections);
+            case "TrackerInterval":
+                return String.valueOf(this.trackerInterval);
+            case "PexInterval":
+                return String.valueOf(this.pexInterval);
+            case "WebSeedMinAvailability":
+                return String.valueOf(this.webSeedMinAvailability);
+            default:
+                throw new IllegalArgumentException(key + " is not a tunable");
+        }
+    }
+
+    public void validate() throws IOException {
+        if (this.fileName == null) {
+            throw new IOException("FileName is missing");
+        }
+        if (this.numberOfPreferredNeighbors <= 0 || this.unchokingInterval <= 0 || this.optimisticUnchokingInterval <= 0) {
+            throw new IOException("NumberOfPreferredNeighbors, UnchokingInterval and OptimisticUnchokingInterval must be positive");
+        }
+        if (this.pieceSize <= 0 || this.pieceSize > MAX_PIECE_SIZE) {
+            throw new IOException("PieceSize must be between 1 and " + MAX_PIECE_SIZE);
+        }
+        if (this.fileSize <= 0 || (this.fileSize + this.pieceSize - 1) / this.pieceSize > Integer.MAX_VALUE) {
+            throw new IOException("FileSize " + this.fileSize + " cannot be split into pieces of " + this.pieceSize);
+        }
+        if (this.mappingWindowSize <= 0 || this.mappingWindowSize > Integer.MAX_VALUE || this.maxMappedWindows <= 0) {
+            throw new IOException("MappingWindowSize must fit a single mapping and MaxMappedWindows must be positive");
+        }
+        if (this.diskThreads <= 0 || this.diskQueueCapacity <= 0 || this.diskCoalesceLimit <= 0) {
+            throw new IOException("DiskThreads, DiskQueueCapacity and DiskCoalesceLimit must be positive");
+        }
+        if (!Arrays.asList(DiskWriter.SYNC_NEVER, DiskWriter.SYNC_EVERY_WRITE, DiskWriter.SYNC_ON_COMPLETE).contains(this.diskSyncPolicy)) {
+            throw new IOException("DiskSyncPolicy must be one of never, write or complete");
+        }
+        if (this.pieceCacheSize < 0 || this.readAheadPieces < 0 || this.haveFlushInterval < 0) {
+            throw new IOException("PieceCacheSize, ReadAheadPieces and HaveFlushInterval cannot be negative");
+        }
+        //One slab receives while another uploads; anything less cannot make progress.
+        if (this.arenaSize < 2 * (this.pieceSize + 9) || this.memoryBudget < 2 * (this.pieceSize + 9)) {
+            throw new IOException("ArenaSize and MemoryBudget must hold at least two frames of PieceSize " + this.pieceSize);
+        }
+        if (this.pipelineMinDepth <= 0 || this.pipelineMaxDepth < this.pipelineMinDepth) {
+            throw new IOException("PipelineMinDepth must be positive and no larger than PipelineMaxDepth");
+        }
+        if (this.requestTimeout <= 0 || this.snubThreshold <= 0) {
+            throw new IOException("RequestTimeout and SnubThreshold must be positive");
+        }
+        if (this.streamingWindow <= 0 || this.streamingDeadline <= 0) {
+            throw new IOException("StreamingWindow and StreamingDeadline must be positive");
+        }
+        if (this.streamOutput != null && !this.streaming) {
+            throw new IOException("StreamOutput needs Streaming 1");
+        }
+        if (!Arrays.asList("tcp", "udp").contains(this.transport)) {
+            throw new IOException("Transport must be tcp or udp");
+        }
+        if (this.udpTargetDelay <= 0 || this.udpDelay < 0 || this.udpLossRate < 0 || this.udpLossRate >= 1) {
+            throw new IOException("UdpTargetDelay must be positive, UdpDelay non-negative and UdpLossRate below 1");
+        }
+        if (this.tracker != null && !this.tracker.matches(".+:\\d+")) {
+            throw new IOException("Tracker must be given as host:port");
+        }
+        if (this.trackerInterval <= 0 || this.trackerNumWant <= 0 || this.maxConnections <= 0) {
+            throw new IOException("TrackerInterval, TrackerNumWant and MaxConnections must be positive");
+        }
+        //The tracker client doubles as the connection manager that PEX feeds.
+        if (this.peerExchange && this.tracker == null) {
+            throw new IOException("PeerExchange needs a Tracker to start from");
+        }
+        if (this.pexInterval <= 0) {
+            throw new IOException("PexInterval must be positive");
+        }
+        if (this.webSeed != null && !this.webSeed.startsWith("http://")) {
+            throw new IOException("WebSeed must be an http:// URL");
+        }
+        if (this.webSeedConnections <= 0 || this.webSeedMinAvailability <= 0) {
+            throw new IOException("WebSeedConnections and WebSeedMinAvailability must be positive");
+        }
+        if (this.traceMaxSize <= 0) {
+            throw new IOException("TraceMaxSize must be positive");
+        }
+        if (this.compressionCacheSize < 0) {
+            throw new IOException("CompressionCacheSize must not be negative");
+        }
+        if (this.contentStoreSize <= 0) {
+            throw new IOException("ContentStoreSize must be positive");
+        }
+        //Source and repair rows together need distinct elements of GF(256).
+        if (this.erasureGroupSize < 1 || this.erasureRepairPieces < 0 || this.erasureGroupSize + this.erasureRepairPieces > 256) {
+            throw new IOException("ErasureGroupSize must be positive and ErasureGroupSize + ErasureRepairPieces at most 256");
+        }
     }
 
     public void printConfigDetails() {
@@ -62,13 +677,37 @@ class Configuration {
         System.out.println("File Name " + this.fileName);
         System.out.println("File Size " + this.fileSize);
         System.out.println("Piece Size " + this.pieceSize);
+        System.out.println("Mapping Window " + this.mappingWindowSize + " x " + this.maxMappedWindows);
+        System.out.println("Disk Writer " + this.diskThreads + " threads, queue " + this.diskQueueCapacity
+                + ", coalesce " + this.diskCoalesceLimit + ", sync " + this.diskSyncPolicy);
+        System.out.println("Piece Cache " + this.pieceCacheSize + " bytes, read ahead " + this.readAheadPieces);
+        System.out.println("Super Seeding " + this.superSeeding);
+        System.out.println("Have Flush Interval " + this.haveFlushInterval + " ms");
+        System.out.println("Buffer Arena " + this.arenaSize + " bytes, memory budget " + this.memoryBudget + " bytes");
+        System.out.println("Streaming " + this.streaming + ", window " + this.streamingWindow + " pieces, deadline "
+                + this.streamingDeadline + " ms" + (this.streamOutput != null ? ", output " + this.streamOutput : ""));
+        System.out.println("Request Pipeline " + this.pipelineMinDepth + " to " + this.pipelineMaxDepth + " pieces, timeout "
+                + this.requestTimeout + " ms, snub after " + this.snubThreshold + " stalls");
+        System.out.println("Transport " + this.transport + ", target delay " + this.udpTargetDelay + " ms, injected loss "
+                + this.udpLossRate + ", injected delay " + this.udpDelay + " ms");
+        System.out.println("Tracker " + (this.tracker != null ? this.tracker + (this.trackerPeer >= 0 ? " hosted by " + this.trackerPeer : "")
+                + ", every " + this.trackerInterval + " s, " + this.trackerNumWant + " peers per answer" : "none")
+                + ", max connections " + this.maxConnections);
+        System.out.println("Peer Exchange " + this.peerExchange + ", every " + this.pexInterval + " s");
+        System.out.println("Web Seed " + (this.webSeed != null ? this.webSeed + ", " + this.webSeedConnections
+                + " connections, below " + this.webSeedMinAvailability + " sources" : "none"));
+        System.out.println("Compression " + this.compression + ", " + (this.compressionCacheSize / (1024 * 1024)) + " MB of deflated pieces cached");
+        System.out.println("Erasure Coding " + (this.erasureRepairPieces > 0 ? this.erasureRepairPieces + " repair pieces per "
+                + this.erasureGroupSize + " source pieces" : "off"));
+        System.out.println("Content Store " + (this.contentStore != null ? this.contentStore + ", up to "
+                + (this.contentStoreSize / (1024 * 1024)) + " MB" : "none"));
+        System.out.println("Trace File " + (this.traceFile != null ? this.traceFile + ", up to " + this.traceMaxSize + " MB" : "none"));
     }
 
     public void printPeerDetails() {
         System.out.println("-----------------PeerInfo.cfg-----------------");
-        for(int peerId : peerProcess.peerMap.keySet()){
-            Peer peer = peerProcess.peerMap.get(peerId);
-            System.out.println("PeerId: "+ peerId + " HostName: "+ peer.getHostName() + " Port: " + peer.getPort() + " hasFile: " + peer.getHasFile());
+        for(Peer peer : peerProcess.peerMap.values()){
+            System.out.println("PeerId: "+ peer.getPeerId() + " HostName: "+ peer.getHostName() + " Port: " + peer.getPort() + " hasFile: " + peer.getHasFile());
         }
     }
 }
@@ -116,6 +755,13 @@ class MessageTypes {
         messageTypes.add("BITFIELD");
         messageTypes.add("REQUEST");
         messageTypes.add("PIECE");
+        messageTypes.add("HAVE_ALL");
+        messageTypes.add("HAVE_NONE");
+        messageTypes.add("REJECT");
+        messageTypes.add("PEX");
+        messageTypes.add("PIECE_DEFLATED");
+        messageTypes.add("PIECE_HASHES");
+        messageTypes.add("CANCEL");
     }
 
     public char getChokeIndex() {
@@ -146,6 +792,31 @@ class MessageTypes {
     public char getPieceIndex() {
         return (char)messageTypes.indexOf("PIECE");
     }
+    public char getHaveAllIndex() {
+        return (char)messageTypes.indexOf("HAVE_ALL");
+    }
+    public char getHaveNoneIndex() {
+        return (char)messageTypes.indexOf("HAVE_NONE");
+    }
+    public char getRejectIndex() {
+        return (char)messageTypes.indexOf("REJECT");
+    }
+    public char getPexIndex() {
+        return (char)messageTypes.indexOf("PEX");
+    }
+    public char getDeflatedPieceIndex() {
+        return (char)messageTypes.indexOf("PIECE_DEFLATED");
+    }
+    public char getPieceHashesIndex() {
+        return (char)messageTypes.indexOf("PIECE_HASHES");
+    }
+    public char getCancelIndex() {
+        return (char)messageTypes.indexOf("CANCEL");
+    }
+
+    public String getName(int index) {
+        return index >= 0 && index < messageTypes.size() ? messageTypes.get(index) : "UNKNOWN(" + index + ")";
+    }
 }
 class CommonConstants {
 
@@ -153,7 +824,7 @@ class CommonConstants {
     private final static String COMMON_CFG_FILE_NAME = "Common.cfg";
     private final static String PEER_INFO_FILE_NAME = "PeerInfo.cfg";
     private final static String handShakeHeader = "P2PFILESHARINGPROJ";
-    private final static String zeroPadding = "0000000000";
+    private final static int HANDSHAKE_LENGTH = 32;
     private static String rootPath = System.getProperty("user.dir").concat("/");
 
     public static String getRootPath() {
@@ -164,8 +835,8 @@ class CommonConstants {
         return handShakeHeader;
     }
 
-    public static String getZeroPadding() {
-        return zeroPadding;
+    public static int getHandshakeLength() {
+        return HANDSHAKE_LENGTH;
     }
 
     public static String getTheFileName() {
@@ -181,22 +852,95 @@ class CommonConstants {
     }
 }
 
+class Capabilities {
+
+    // Handshake bytes 18..27 (the old zero padding) carry these flags as a big-endian long plus the sender's listening port.
+    static final long COMPACT_BITFIELD = 1L;       // BITFIELD payload is one bit per piece instead of one int
+    static final long BLOCK_REQUESTS = 1L << 1;    // REQUEST may carry a block of piece indices
+    static final long FAST = 1L << 2;              // HAVE_ALL, HAVE_NONE and REJECT messages
+    static final long CANCEL = 1L << 3;            // CANCEL for requests not yet served
+    static final long HAVE_BATCH = 1L << 4;        // HAVE may carry several piece indices
+    static final long UDP_TRANSPORT = 1L << 5;     // messages move to a UDP link once the handshake completes
+    static final long PEX = 1L << 6;               // PEX messages with added and dropped neighbours
+    static final long COMPRESSION = 1L << 7;       // PIECE_DEFLATED for pieces that shrink under deflate
+    static final long PIECE_HASHES = 1L << 8;      // PIECE_HASHES with the SHA-256 of every piece
+    static final long ERASURE = 1L << 9;           // REQUEST and PIECE for Reed-Solomon repair pieces past the last piece
+
+    public static long getLocalCapabilities() {
+        long capabilities = COMPACT_BITFIELD | BLOCK_REQUESTS | FAST | CANCEL | HAVE_BATCH;
+        if (peerProcess.udpTransport != null) capabilities |= UDP_TRANSPORT;
+        if (peerProcess.peerExchange != null) capabilities |= PEX;
+        if (peerProcess.pieceCompressor != null) capabilities |= COMPRESSION;
+        if (peerProcess.contentStore != null) capabilities |= PIECE_HASHES;
+        if (peerProcess.erasure != null) capabilities |= ERASURE;
+        return capabilities;
+    }
+
+    public static long negotiate(long local, long remote) {
+        return local & remote;
+    }
+
+    public static String describe(long capabilities) {
+        StringBuilder builder = new StringBuilder("[");
+        if ((capabilities & COMPACT_BITFIELD) != 0) builder.append(" compact-bitfield");
+        if ((capabilities & BLOCK_REQUESTS) != 0) builder.append(" block-requests");
+        if ((capabilities & FAST) != 0) builder.append(" fast");
+        if ((capabilities & CANCEL) != 0) builder.append(" cancel");
+        if ((capabilities & HAVE_BATCH) != 0) builder.append(" have-batch");
+        if ((capabilities & UDP_TRANSPORT) != 0) builder.append(" udp");
+        if ((capabilities & PEX) != 0) builder.append(" pex");
+        if ((capabilities & COMPRESSION) != 0) builder.append(" compression");
+        if ((capabilities & PIECE_HASHES) != 0) builder.append(" piece-hashes");
+        if ((capabilities & ERASURE) != 0) builder.append(" erasure");
+        return builder.append(" ]").toString();
+    }
+}
+
 class Utils {
 
-    public static int getRandomFilePiece(int[] currentPeerBitfield, int[] otherPeerBitfield, int size) {
-        ArrayList<Integer> piecesRequired = new ArrayList<>();
-        for (int i = 0; i < size; i++) {
-            if (currentPeerBitfield[i] == 0 && otherPeerBitfield[i] == 1) {
-                piecesRequired.add(i);
-            }
+    public static int getRandomFilePiece(AtomicBitSet currentPeerBitfield, AtomicBitSet otherPeerBitfield) {
+        return getRandomFilePiece(currentPeerBitfield, otherPeerBitfield, -1);
+    }
+
+    public static int getRandomFilePiece(AtomicBitSet currentPeerBitfield, AtomicBitSet otherPeerBitfield, int excludedIndex) {
+        return getRandomFilePiece(currentPeerBitfield, otherPeerBitfield, null, excludedIndex);
+    }
+
+    //Picks uniformly among the missing pieces not already requested, counting bits word by word instead of collecting candidates.
+    public static int getRandomFilePiece(AtomicBitSet currentPeerBitfield, AtomicBitSet otherPeerBitfield, AtomicBitSet requestedPieces, int excludedIndex) {
+        int piecesRequired = 0;
+        for (int w = 0; w < otherPeerBitfield.wordCount(); w++) {
+            piecesRequired += Long.bitCount(missingWord(currentPeerBitfield, otherPeerBitfield, requestedPieces, w, excludedIndex));
         }
-        if (piecesRequired.size() <= 0) {
+        if (piecesRequired <= 0) {
             return -1;
-        } else {
-            Random random = new Random();
-            int index = Math.abs(random.nextInt() % piecesRequired.size());
-            return piecesRequired.get(index);
         }
+        int target = ThreadLocalRandom.current().nextInt(piecesRequired);
+        int fallback = -1;
+        for (int w = 0; w < otherPeerBitfield.wordCount(); w++) {
+            long word = missingWord(currentPeerBitfield, otherPeerBitfield, requestedPieces, w, excludedIndex);
+            int count = Long.bitCount(word);
+            if (count == 0) continue;
+            if (target < count) {
+                for (; target > 0; target--) word &= word - 1;
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            target -= count;
+            fallback = (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+        //Another thread filled pieces between the two passes.
+        return fallback;
+    }
+
+    private static long missingWord(AtomicBitSet currentPeerBitfield, AtomicBitSet otherPeerBitfield, AtomicBitSet requestedPieces, int w, int excludedIndex) {
+        long word = otherPeerBitfield.getWord(w) & ~currentPeerBitfield.getWord(w);
+        if (requestedPieces != null) {
+            word &= ~requestedPieces.getWord(w);
+        }
+        if (excludedIndex >= 0 && (excludedIndex >>> 6) == w) {
+            word &= ~(1L << excludedIndex);
+        }
+        return word;
     }
 
     public static byte[] returnArrayCopy(byte[] original, int low, int high) {
@@ -214,32 +958,56 @@ class Utils {
         return new String(copy, StandardCharsets.UTF_8);
     }
 
-    public static byte[] createHandshakePacket(int peerId) {
-        byte[] hSPacket = new byte[32];
+    public static byte[] createHandshakePacket(int peerId, long capabilities, int listenPort) {
+        ByteBuffer hSPacket = ByteBuffer.allocate(CommonConstants.getHandshakeLength());
+        hSPacket.put(CommonConstants.getHandShakeHeader().getBytes(StandardCharsets.US_ASCII));
+        hSPacket.putLong(capabilities);
+        hSPacket.putShort((short) listenPort);
+        hSPacket.putInt(peerId);
+        return hSPacket.array();
+    }
 
-        byte[] headerInBytes = CommonConstants.getHandShakeHeader().getBytes();
-        byte[] zerosInBytes = CommonConstants.getZeroPadding().getBytes();
-        byte[] peerIdInBytes = ByteBuffer.allocate(4).put(String.valueOf(peerId).getBytes()).array();
-        int index = 0;
+    public static boolean isValidHandshake(byte[] hSPacket) {
+        String header = CommonConstants.getHandShakeHeader();
+        return hSPacket.length == CommonConstants.getHandshakeLength()
+                && new String(hSPacket, 0, header.length(), StandardCharsets.US_ASCII).equals(header);
+    }
 
-        for (int i = 0; i < headerInBytes.length; i++) {
-            hSPacket[index++] = headerInBytes[i];
-        }
+    public static long getHandshakeCapabilities(byte[] hSPacket) {
+        return ByteBuffer.wrap(hSPacket).getLong(CommonConstants.getHandShakeHeader().length());
+    }
 
-        for (int i = 0; i < zerosInBytes.length; i++) {
-            hSPacket[index++] = zerosInBytes[i];
-        }
+    public static int getHandshakePort(byte[] hSPacket) {
+        return Short.toUnsignedInt(ByteBuffer.wrap(hSPacket).getShort(CommonConstants.getHandShakeHeader().length() + 8));
+    }
+
+    public static int getHandshakePeerId(byte[] hSPacket) {
+        return ByteBuffer.wrap(hSPacket).getInt(CommonConstants.getHandshakeLength() - 4);
+    }
 
-        for (int i = 0; i < peerIdInBytes.length; i++) {
-            hSPacket[index++] = peerIdInBytes[i];
+    public static byte[] encodeCompactBitfield(AtomicBitSet bitfield) {
+        byte[] packed = new byte[(bitfield.size() + 7) / 8];
+        for (int i = 0; i < bitfield.size(); i++) {
+            if (bitfield.get(i)) {
+                packed[i >> 3] |= (byte) (0x80 >>> (i & 7));
+            }
         }
+        return packed;
+    }
 
-        return hSPacket;
+    public static AtomicBitSet decodeCompactBitfield(byte[] packed, int size) {
+        AtomicBitSet bitfield = new AtomicBitSet(size);
+        for (int i = 0; i < size && (i >> 3) < packed.length; i++) {
+            if (((packed[i >> 3] >>> (7 - (i & 7))) & 1) == 1) {
+                bitfield.set(i);
+            }
+        }
+        return bitfield;
     }
 
-    public static boolean checkMissingPieces(int[] currentPeerBitfield, int[] otherPeerBitfield, int size) {
-        for (int i = 0; i < size; i++) {
-            if (currentPeerBitfield[i] == 0 && otherPeerBitfield[i] == 1) {
+    public static boolean checkMissingPieces(AtomicBitSet currentPeerBitfield, AtomicBitSet otherPeerBitfield) {
+        for (int w = 0; w < otherPeerBitfield.wordCount(); w++) {
+            if ((otherPeerBitfield.getWord(w) & ~currentPeerBitfield.getWord(w)) != 0) {
                 return true;
             }
         }
@@ -249,877 +1017,5740 @@ class Utils {
 
 
 
-class Peer {
-    private int peerId;
-    private String hostName;
-    private int port;
-    private int hasFile;
-    private int[] bitfield;
-    private int numberOfPieces;
-
-    public Peer(int peerId, String hostName, int port, int hasFile) {
-        this.peerId = peerId;
-        this.hostName = hostName;
-        this.port = port;
-        this.hasFile = hasFile;
-        this.numberOfPieces = 0;
-    }
-
-    public void setHasFile(int hasFile) {
-        this.hasFile = hasFile;
-    }
+class AtomicBitSet {
 
-    public int getHasFile() {
-        return this.hasFile;
-    }
+    private final AtomicLongArray words;
+    private final int size;
+    private final AtomicInteger cardinality;
 
-    public int getPeerId() {
-        return this.peerId;
+    public AtomicBitSet(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+        this.cardinality = new AtomicInteger();
     }
 
-    public void downloadComplete() {
-        this.hasFile = 1;
+    public static AtomicBitSet full(int size) {
+        AtomicBitSet bitSet = new AtomicBitSet(size);
+        for (int w = 0; w < bitSet.words.length(); w++) {
+            int bitsInWord = Math.min(64, size - (w << 6));
+            bitSet.words.set(w, bitsInWord == 64 ? -1L : (1L << bitsInWord) - 1);
+        }
+        bitSet.cardinality.set(size);
+        return bitSet;
     }
 
-    public int getPiecesLength() {
-        return this.bitfield.length;
+    public int size() {
+        return size;
     }
 
-    public void setBitfield(int[] bitfield) {
-        this.bitfield = bitfield;
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
     }
 
-    public int getNoOfPiecesStored() {
-        int no = 0;
-        for (int i = 0; i < bitfield.length; i++) if (bitfield[i] == 1) no++;
-        return no;
+    //Returns true only for the thread that actually flipped the bit.
+    public boolean set(int index) {
+        int w = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long current = words.get(w);
+            if ((current & mask) != 0) return false;
+            if (words.compareAndSet(w, current, current | mask)) {
+                cardinality.incrementAndGet();
+                return true;
+            }
+        }
     }
 
-    public void incrementNumOfPieces() {
-        this.numberOfPieces++;
-        if (this.numberOfPieces == this.bitfield.length) {
-            this.hasFile = 1;
+    public boolean clear(int index) {
+        int w = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long current = words.get(w);
+            if ((current & mask) == 0) return false;
+            if (words.compareAndSet(w, current, current & ~mask)) {
+                cardinality.decrementAndGet();
+                return true;
+            }
         }
     }
 
-    public int getNumberOfPieces() {
-        return this.numberOfPieces;
+    public int cardinality() {
+        return cardinality.get();
     }
 
-    public int getPort() {
-        return this.port;
+    public boolean isFull() {
+        return cardinality.get() == size;
     }
 
+    public boolean isEmpty() {
+        return cardinality.get() == 0;
+    }
 
-    public String getHostName() {
-        return this.hostName;
+    //Clears one word and returns the bits it held, for bitsets used as work queues.
+    public long drainWord(int w) {
+        long bits = words.getAndSet(w, 0);
+        if (bits != 0) cardinality.addAndGet(-Long.bitCount(bits));
+        return bits;
     }
 
-    public int[] getBitField() {
-        return this.bitfield;
+    public int wordCount() {
+        return words.length();
     }
 
-    public void markBitOn(int i) {
-        this.bitfield[i] = 1;
+    public long getWord(int w) {
+        return words.get(w);
     }
 }
 
+//Copy-on-write open-addressing map keyed by int: reads never lock, writers retry a CAS on the table.
+class ConcurrentIntMap<V> {
+
+    static final class View<V> extends AbstractList<V> {
+        private final int[] keys;
+        private final Object[] values;
+        private final int[] slots;
+
+        View(int[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
+            int capacity = 2;
+            while (capacity < keys.length * 2) capacity <<= 1;
+            this.slots = new int[capacity];
+            for (int i = 0; i < keys.length; i++) {
+                int slot = mix(keys[i]) & (capacity - 1);
+                while (slots[slot] != 0) slot = (slot + 1) & (capacity - 1);
+                slots[slot] = i + 1;
+            }
+        }
 
+        static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
 
-public class peerProcess {
-    static Configuration configuration;
-    static int currentPeerId;
-    static LinkedHashMap<Integer, Peer> peerMap;
-    private static ConcurrentHashMap<Integer, PeerSocket> socketMap;
-    static Peer currentPeer;
-    static MessageTypes messageTypes;
-    static byte[][] currentFilePieces;
-    static int peersCompleted = 0;
-    static File currentNodeDir;
-    private static String theFileName;
-    static MyLogger logger;
-
-    private static class ParentThread extends Thread {
-        private PeerSocket peerSocket;
-
-        public ParentThread(PeerSocket peerSocket) {
-            this.peerSocket = peerSocket;
+        int indexOf(int key) {
+            int mask = slots.length - 1;
+            for (int slot = mix(key) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slots[slot] - 1] == key) return slots[slot] - 1;
+            }
+            return -1;
         }
 
-        public void printDownloadProgress() {
-            double downloadedPercentage = ((currentPeer.getNumberOfPieces() * 100.0) / configuration.getTotalPieces());
-            System.out.println(currentPeer.getNumberOfPieces() + "/" + configuration.getTotalPieces() + " downloaded: " + downloadedPercentage +"% ");
+        public int keyAt(int index) {
+            return keys[index];
         }
 
+        @SuppressWarnings("unchecked")
         @Override
-        public void run() {
-            synchronized (this) {
+        public V get(int index) {
+            return (V) values[index];
+        }
 
-                try {
-                    DataInputStream inputStream = new DataInputStream(peerSocket.getSocket().getInputStream());
-                    System.out.println("Sending bit field msg ... ");
-                    peerSocket.sendBitFieldMsg();
-                    while (peersCompleted < peerMap.size()) {
-                        int size = inputStream.readInt();
+        @Override
+        public int size() {
+            return keys.length;
+        }
+    }
 
-                        byte[] formattedMessage = new byte[size - 1];
-                        byte[] message = new byte[size];
+    private final AtomicReference<View<V>> view = new AtomicReference<>(new View<>(new int[0], new Object[0]));
 
-                        double startTime = (System.nanoTime() / 100000000.0);
-                        inputStream.readFully(message);
-                        double endTime = (System.nanoTime() / 100000000.0);
+    public V get(int key) {
+        View<V> current = view.get();
+        int index = current.indexOf(key);
+        return index < 0 ? null : current.get(index);
+    }
 
-                        char messageType = (char) message[0];
-                        for (int i = 1; i < size; i++) {
-                            formattedMessage[i-1] = message[i];
-                        }
+    public boolean containsKey(int key) {
+        return view.get().indexOf(key) >= 0;
+    }
 
-                        if (messageType == messageTypes.getBitFieldIndex()) {
-                            int[] bitfield = new int[formattedMessage.length / 4];
-                            int count = 0;
-                            for (int i = 0; i < formattedMessage.length; i += 4) { //
-                                byte[] temp = Utils.returnArrayCopy(formattedMessage, i, i + 4);
-                                bitfield[count++] = ByteBuffer.wrap(temp).getInt();
-                            }
+    public V put(int key, V value) {
+        while (true) {
+            View<V> current = view.get();
+            int index = current.indexOf(key);
+            int[] keys = current.keys;
+            Object[] values;
+            if (index >= 0) {
+                values = current.values.clone();
+                values[index] = value;
+            } else {
+                keys = Arrays.copyOf(current.keys, keys.length + 1);
+                keys[keys.length - 1] = key;
+                values = Arrays.copyOf(current.values, keys.length);
+                values[keys.length - 1] = value;
+            }
+            if (view.compareAndSet(current, new View<>(keys, values))) {
+                return index >= 0 ? current.get(index) : null;
+            }
+        }
+    }
 
-                            Peer peer = peerMap.get(this.peerSocket.getPeerId());
-                            peer.setBitfield(bitfield);
-                            int currentPeerPieces = peer.getNoOfPiecesStored();
+    public V remove(int key) {
+        while (true) {
+            View<V> current = view.get();
+            int index = current.indexOf(key);
+            if (index < 0) return null;
+            int[] keys = new int[current.keys.length - 1];
+            Object[] values = new Object[keys.length];
+            System.arraycopy(current.keys, 0, keys, 0, index);
+            System.arraycopy(current.keys, index + 1, keys, index, keys.length - index);
+            System.arraycopy(current.values, 0, values, 0, index);
+            System.arraycopy(current.values, index + 1, values, index, keys.length - index);
+            if (view.compareAndSet(current, new View<>(keys, values))) {
+                return current.get(index);
+            }
+        }
+    }
 
-                            if (currentPeerPieces == currentPeer.getPiecesLength()) {
-                                peer.setHasFile(1);
-                                peersCompleted++;
-                            }else {
-                                peer.setHasFile(0);
-                            }
+    //Removes the entry only while it still maps to the given value.
+    public boolean remove(int key, V expected) {
+        while (true) {
+            View<V> current = view.get();
+            int index = current.indexOf(key);
+            if (index < 0 || current.get(index) != expected) return false;
+            int[] keys = new int[current.keys.length - 1];
+            Object[] values = new Object[keys.length];
+            System.arraycopy(current.keys, 0, keys, 0, index);
+            System.arraycopy(current.keys, index + 1, keys, index, keys.length - index);
+            System.arraycopy(current.values, 0, values, 0, index);
+            System.arraycopy(current.values, index + 1, values, index, keys.length - index);
+            if (view.compareAndSet(current, new View<>(keys, values))) {
+                return true;
+            }
+        }
+    }
 
-                            boolean missingPieces = Utils.checkMissingPieces(currentPeer.getBitField(),
-                                    peer.getBitField(), peer.getPiecesLength());
+    public int size() {
+        return view.get().size();
+    }
 
-                            if (missingPieces==true) {
-                                this.peerSocket.sendInterestedMessage(); //Should I change the names of these functions??
+    //Insertion-ordered snapshot; later writes never disturb an iteration in progress.
+    public View<V> values() {
+        return view.get();
+    }
+}
+
+class IntList {
+
+    private int[] elements;
+    private int size;
+
+    public IntList() {
+        this.elements = new int[16];
+    }
+
+    public void add(int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+        }
+        elements[size++] = value;
+    }
+
+    public int get(int index) {
+        return elements[index];
+    }
+
+    //Shifts the later elements down, keeping their order.
+    public int remove(int index) {
+        int removed = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, --size - index);
+        return removed;
+    }
+
+    //Moves the last element into the gap, so order is not preserved.
+    public int removeUnordered(int index) {
+        int removed = elements[index];
+        elements[index] = elements[--size];
+        return removed;
+    }
+
+    public int indexOf(int value) {
+        for (int i = 0; i < size; i++) {
+            if (elements[i] == value) return i;
+        }
+        return -1;
+    }
+
+    public void swap(int i, int j) {
+        int temp = elements[i];
+        elements[i] = elements[j];
+        elements[j] = temp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public String toString(int limit) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < Math.min(limit, size); i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(elements[i]);
+        }
+        return builder.append("]").toString();
+    }
+
+    @Override
+    public String toString() {
+        return toString(size);
+    }
+}
+
+//Open-addressing int to int map with linear probing; not thread safe.
+class IntIntMap {
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+    private final int missingValue;
+
+    public IntIntMap(int missingValue) {
+        this.keys = new int[16];
+        this.values = new int[16];
+        this.used = new boolean[16];
+        this.missingValue = missingValue;
+    }
+
+    private int slotOf(int key) {
+        int mask = keys.length - 1;
+        int slot = ConcurrentIntMap.View.mix(key) & mask;
+        while (used[slot] && keys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    public int get(int key) {
+        int slot = slotOf(key);
+        return used[slot] ? values[slot] : missingValue;
+    }
+
+    public boolean containsKey(int key) {
+        return used[slotOf(key)];
+    }
+
+    public int put(int key, int value) {
+        int slot = slotOf(key);
+        if (used[slot]) {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) resize();
+        return missingValue;
+    }
+
+    public int remove(int key) {
+        int slot = slotOf(key);
+        if (!used[slot]) return missingValue;
+        int previous = values[slot];
+        int mask = keys.length - 1;
+        //Backward-shift deletion keeps probe chains intact without tombstones.
+        int hole = slot;
+        for (int next = (hole + 1) & mask; used[next]; next = (next + 1) & mask) {
+            int home = ConcurrentIntMap.View.mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        used[hole] = false;
+        size--;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    private void resize() {
+        int[] oldKeys = keys, oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
+
+//Hashed timing wheel: one daemon thread advances a tick at a time and runs whatever expires in that slot.
+class TimerWheel {
+
+    static final class Timeout {
+        private final Runnable task;
+        private long remainingRounds;
+        private int slot = -1;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final ArrayList<Timeout> expired = new ArrayList<>();
+    private long tick = 0;
+
+    public TimerWheel(String name, long tickMillis, int slotCount) {
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.slots = new Timeout[slotCount];
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public synchronized Timeout schedule(long delayNanos, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+        timeout.slot = (int) ((tick + ticks - 1) % slots.length);
+        timeout.remainingRounds = (ticks - 1) / slots.length;
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        slots[timeout.slot] = timeout;
+        return timeout;
+    }
+
+    //Safe to call on a timeout that already fired or was cancelled.
+    public synchronized void cancel(Timeout timeout) {
+        if (timeout == null || timeout.slot < 0) return;
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else slots[timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        while (true) {
+            try {
+                long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+                if (sleep > 0) Thread.sleep(sleep / 1_000_000L, (int) (sleep % 1_000_000L));
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                int slot = (int) (tick % slots.length);
+                Timeout timeout = slots[slot];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remainingRounds-- == 0) {
+                        cancel(timeout);
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+                tick++;
+            }
+            //Tasks run outside the wheel's lock so they may schedule or cancel other timeouts.
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+}
+
+//Sizes the outstanding requests on one connection to its measured bandwidth-delay product.
+//Callers serialise access through the owning connection's request lock.
+class RequestPipeline {
+
+    //The floor on RTT is re-learned periodically so a route change is not masked forever.
+    private static final long MIN_RTT_LIFETIME = 10_000_000_000L;
+
+    private int minDepth;
+    private int maxDepth;
+    private final long pieceSize;
+    private final TimerWheel timer;
+    private final IntList pieces = new IntList();
+    private long[] sentAt = new long[16];
+    private TimerWheel.Timeout[] deadlines = new TimerWheel.Timeout[16];
+    private double smoothedRtt = 0;
+    private double minRtt = 0;
+    private long minRttStamp = 0;
+    private double deliveryRate = 0;
+    private long windowStart = 0;
+    private long windowBytes = 0;
+    private long lastRoundTrip = -1;
+    private int depth;
+
+    public RequestPipeline(TimerWheel timer, int minDepth, int maxDepth, long pieceSize) {
+        this.timer = timer;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        this.pieceSize = pieceSize;
+        this.depth = minDepth;
+    }
+
+    public void onRequest(int pieceIndex, long now, TimerWheel.Timeout deadline) {
+        if (pieces.size() == sentAt.length) {
+            sentAt = Arrays.copyOf(sentAt, sentAt.length * 2);
+            deadlines = Arrays.copyOf(deadlines, deadlines.length * 2);
+        }
+        sentAt[pieces.size()] = now;
+        deadlines[pieces.size()] = deadline;
+        pieces.add(pieceIndex);
+    }
+
+    //A request is given several smoothed RTTs, and never less than the configured floor.
+    public long getRequestTimeout(long floorNanos) {
+        return Math.max(floorNanos, (long) (4 * smoothedRtt));
+    }
+
+    //Returns false for a piece that was not outstanding; such pieces take no part in the estimates.
+    public boolean onPiece(int pieceIndex, int bytes, long now) {
+        int slot = pieces.indexOf(pieceIndex);
+        if (slot < 0) return false;
+        long sent = sentAt[slot];
+        removeAt(slot);
+        lastRoundTrip = now - sent;
+        double rtt = now - sent;
+        smoothedRtt = smoothedRtt == 0 ? rtt : smoothedRtt * 0.875 + rtt * 0.125;
+        if (minRtt == 0 || rtt < minRtt || now - minRttStamp > MIN_RTT_LIFETIME) {
+            minRtt = rtt;
+            minRttStamp = now;
+        }
+        //Rate samples span at least one RTT so pieces that arrive back to back out of a socket buffer do not look infinitely fast.
+        if (windowStart == 0 || pieces.isEmpty() && now - windowStart > 4 * minRtt) {
+            windowStart = sent;
+            windowBytes = 0;
+        }
+        windowBytes += bytes;
+        if (now - windowStart >= minRtt) {
+            double sample = windowBytes / (double) (now - windowStart);
+            deliveryRate = deliveryRate == 0 ? sample : deliveryRate * 0.75 + sample * 0.25;
+            windowStart = now;
+            windowBytes = 0;
+        }
+        //Queueing behind our own requests inflates the smoothed RTT, so the product uses the floor.
+        double bandwidthDelay = deliveryRate * minRtt;
+        depth = (int) Math.max(minDepth, Math.min(maxDepth, Math.ceil(bandwidthDelay / pieceSize) + 1));
+        return true;
+    }
+
+    public boolean contains(int pieceIndex) {
+        return pieces.indexOf(pieceIndex) >= 0;
+    }
+
+    //Request-to-delivery time of the piece last accepted by onPiece.
+    public long getLastRoundTrip() {
+        return lastRoundTrip;
+    }
+
+    public boolean remove(int pieceIndex) {
+        int slot = pieces.indexOf(pieceIndex);
+        if (slot < 0) return false;
+        removeAt(slot);
+        return true;
+    }
+
+    private void removeAt(int slot) {
+        int last = pieces.size() - 1;
+        timer.cancel(deadlines[slot]);
+        sentAt[slot] = sentAt[last];
+        deadlines[slot] = deadlines[last];
+        deadlines[last] = null;
+        pieces.removeUnordered(slot);
+    }
+
+    public int getWanted() {
+        return Math.max(0, depth - pieces.size());
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepthLimits(int minDepth, int maxDepth) {
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        depth = Math.max(minDepth, Math.min(maxDepth, depth));
+    }
+
+    public int size() {
+        return pieces.size();
+    }
+
+    public int get(int index) {
+        return pieces.get(index);
+    }
+
+    public boolean isEmpty() {
+        return pieces.isEmpty();
+    }
+
+    public void clear() {
+        for (int i = 0; i < pieces.size(); i++) {
+            timer.cancel(deadlines[i]);
+            deadlines[i] = null;
+        }
+        pieces.clear();
+    }
+
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    //Bytes per second.
+    public double getDeliveryRate() {
+        return deliveryRate * 1_000_000_000L;
+    }
+
+    public String getStatistics() {
+        return String.format("depth %d, srtt %.2f ms, %.0f bytes/s", depth, smoothedRtt / 1_000_000.0, getDeliveryRate());
+    }
+}
+
+class Peer {
+    private final int peerId;
+    private final String hostName;
+    private final int port;
+    private final AtomicInteger hasFile;
+    private volatile AtomicBitSet bitfield;
+    private final AtomicInteger numberOfPieces;
+    private final AtomicBoolean completionCounted = new AtomicBoolean();
+
+    public Peer(int peerId, String hostName, int port, int hasFile) {
+        this.peerId = peerId;
+        this.hostName = hostName;
+        this.port = port;
+        this.hasFile = new AtomicInteger(hasFile);
+        this.numberOfPieces = new AtomicInteger();
+    }
+
+    public void setHasFile(int hasFile) {
+        this.hasFile.set(hasFile);
+    }
+
+    public int getHasFile() {
+        return this.hasFile.get();
+    }
+
+    public int getPeerId() {
+        return this.peerId;
+    }
+
+    //Only the first caller to see the peer complete gets true; hasFile alone cannot tell, since PeerInfo.cfg presets it for seeders.
+    public boolean markComplete() {
+        this.hasFile.set(1);
+        return this.completionCounted.compareAndSet(false, true);
+    }
+
+    public int getPiecesLength() {
+        return this.bitfield.size();
+    }
+
+    public void setBitfield(AtomicBitSet bitfield) {
+        this.bitfield = bitfield;
+    }
+
+    public int getNoOfPiecesStored() {
+        return bitfield.cardinality();
+    }
+
+    public void incrementNumOfPieces() {
+        this.numberOfPieces.incrementAndGet();
+    }
+
+    public int getNumberOfPieces() {
+        return this.numberOfPieces.get();
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+
+    public String getHostName() {
+        return this.hostName;
+    }
+
+    public AtomicBitSet getBitField() {
+        return this.bitfield;
+    }
+
+    public boolean hasPiece(int i) {
+        return this.bitfield.get(i);
+    }
+
+    public boolean markBitOn(int i) {
+        return this.bitfield.set(i);
+    }
+}
+
+
+
+//Fixed pool of equally sized direct slabs; piece payloads live here instead of on the heap.
+class BufferArena {
+
+    //A slab lent out by the arena, returned to the free list when its last holder releases it.
+    static final class Slab {
+        private final BufferArena arena;
+        private final ByteBuffer memory;
+        private final AtomicInteger references = new AtomicInteger();
+
+        private Slab(BufferArena arena, ByteBuffer memory) {
+            this.arena = arena;
+            this.memory = memory;
+        }
+
+        public ByteBuffer buffer() {
+            return memory;
+        }
+
+        public Slab retain() {
+            if (references.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Slab retained after release");
+            }
+            return this;
+        }
+
+        public void release() {
+            int remaining = references.decrementAndGet();
+            if (remaining == 0) {
+                arena.recycle(this);
+            } else if (remaining < 0) {
+                throw new IllegalStateException("Slab released twice");
+            }
+        }
+    }
+
+    private final int slabSize;
+    private final int maxSlabs;
+    private final ArrayDeque<Slab> free = new ArrayDeque<>();
+    private volatile BooleanSupplier reclaimer = () -> false;
+    private int allocated = 0;
+    private int inUse = 0;
+    private int peakInUse = 0;
+    private long waits = 0;
+
+    public BufferArena(long capacity, int slabSize) {
+        this.slabSize = slabSize;
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, capacity / slabSize);
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    //Called when the arena runs dry; returns true if it gave a slab back.
+    public void setReclaimer(BooleanSupplier reclaimer) {
+        this.reclaimer = reclaimer;
+    }
+
+    //Returns a slab limited to length bytes, or null when the cap is reached.
+    public synchronized Slab tryAcquire(int length) {
+        if (length > slabSize) {
+            throw new IllegalArgumentException(length + " bytes do not fit a " + slabSize + " byte slab");
+        }
+        Slab slab = free.poll();
+        if (slab == null) {
+            if (allocated >= maxSlabs) return null;
+            slab = new Slab(this, ByteBuffer.allocateDirect(slabSize));
+            allocated++;
+        }
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+        slab.references.set(1);
+        slab.memory.clear().limit(length);
+        return slab;
+    }
+
+    //Asks the reclaimer for a slab back; true if one was released.
+    public boolean reclaim() {
+        return reclaimer.getAsBoolean();
+    }
+
+    public synchronized long getBytesInUse() {
+        return (long) inUse * slabSize;
+    }
+
+    public Slab acquire(int length) throws InterruptedException {
+        while (true) {
+            Slab slab = tryAcquire(length);
+            if (slab != null) return slab;
+            if (reclaim()) continue;
+            synchronized (this) {
+                waits++;
+                if (free.isEmpty()) wait(100);
+            }
+        }
+    }
+
+    private synchronized void recycle(Slab slab) {
+        inUse--;
+        free.push(slab);
+        notifyAll();
+    }
+
+    public synchronized String getStatistics() {
+        return allocated + "/" + maxSlabs + " slabs of " + slabSize + " bytes, " + inUse + " in use, peak "
+                + peakInUse + ", " + waits + " waits";
+    }
+}
+
+//Soft limit on piece data held by this peer: bytes requested but not yet received plus arena slabs in use.
+class MemoryGovernor {
+
+    private final long budget;
+    private final BufferArena arena;
+    private long reserved = 0;
+    private long peakUsage = 0;
+    private long throttledRequests = 0;
+    private long pausedReads = 0;
+    private long rejectedFrames = 0;
+
+    public MemoryGovernor(long budget, BufferArena arena) {
+        this.budget = budget;
+        this.arena = arena;
+    }
+
+    private long usage() {
+        return reserved + arena.getBytesInUse();
+    }
+
+    //Blocks the requesting reader until the budget has room, shedding cached pieces first.
+    public void reserve(long bytes) throws InterruptedException {
+        boolean throttled = false;
+        while (!tryUse(bytes, true)) {
+            if (arena.reclaim()) continue;
+            if (!throttled) {
+                throttled = true;
+                synchronized (this) {
+                    throttledRequests++;
+                }
+            }
+            synchronized (this) {
+                wait(50);
+            }
+        }
+    }
+
+    //Non-blocking variant for topping up a pipeline that already has requests in flight.
+    public boolean tryReserve(long bytes) {
+        while (!tryUse(bytes, true)) {
+            if (!arena.reclaim()) {
+                synchronized (this) {
+                    throttledRequests++;
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Pauses a reader until an unrequested payload fits, without reserving anything for it.
+    public void awaitCapacity(long bytes) throws InterruptedException {
+        boolean paused = false;
+        while (!tryUse(bytes, false)) {
+            if (arena.reclaim()) continue;
+            if (!paused) {
+                paused = true;
+                synchronized (this) {
+                    pausedReads++;
+                }
+            }
+            synchronized (this) {
+                wait(50);
+            }
+        }
+    }
+
+    private synchronized boolean tryUse(long bytes, boolean reserve) {
+        if (usage() + bytes > budget) return false;
+        if (reserve) reserved += bytes;
+        peakUsage = Math.max(peakUsage, usage());
+        return true;
+    }
+
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) return;
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    public synchronized void rejectFrame() {
+        rejectedFrames++;
+    }
+
+    public synchronized String getStatistics() {
+        return "peak " + peakUsage + " of " + budget + " bytes, " + throttledRequests + " throttled requests, "
+                + pausedReads + " paused reads, " + rejectedFrames + " oversized frames";
+    }
+}
+
+//Streaming mode picker: pieces inside a window from the playback cursor go first and in order, everything else rarest-first.
+class StreamingPicker {
+
+    private final int window;
+    private final long deadlineNanos;
+    private final AtomicIntegerArray availability;
+    private final AtomicLongArray requestedAt;
+    private volatile int cursor = 0;
+
+    public StreamingPicker(int totalPieces, int window, long deadlineMillis) {
+        this.window = window;
+        this.deadlineNanos = deadlineMillis * 1_000_000L;
+        this.availability = new AtomicIntegerArray(totalPieces);
+        this.requestedAt = new AtomicLongArray(totalPieces);
+    }
+
+    public void seek(int pieceIndex) {
+        this.cursor = pieceIndex;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    //Keeps per-piece availability in step with what neighbours advertise.
+    public void onBitfield(AtomicBitSet previous, AtomicBitSet current) {
+        for (int w = 0; w < current.wordCount(); w++) {
+            long before = previous == null ? 0 : previous.getWord(w);
+            long after = current.getWord(w);
+            for (long added = after & ~before; added != 0; added &= added - 1) {
+                availability.incrementAndGet((w << 6) + Long.numberOfTrailingZeros(added));
+            }
+            for (long removed = before & ~after; removed != 0; removed &= removed - 1) {
+                availability.decrementAndGet((w << 6) + Long.numberOfTrailingZeros(removed));
+            }
+        }
+    }
+
+    public void onHave(int pieceIndex) {
+        availability.incrementAndGet(pieceIndex);
+    }
+
+    public void onRequested(int pieceIndex, long now) {
+        requestedAt.set(pieceIndex, now);
+    }
+
+    public int pick(AtomicBitSet current, AtomicBitSet neighbor, AtomicBitSet requested, RequestPipeline own,
+                    int excludedIndex, long now) {
+        int start = cursor;
+        int end = (int) Math.min(current.size(), (long) start + window);
+        for (int i = start; i < end; i++) {
+            if (i == excludedIndex || current.get(i) || !neighbor.get(i) || own.contains(i)) continue;
+            if (!requested.get(i)) return i;
+            //Each step further from the cursor earns another deadline; past it a second neighbour is asked as well.
+            long at = requestedAt.get(i);
+            if (at != 0 && now - at > deadlineNanos * (i - start + 1)) return i;
+        }
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        int ties = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int w = 0; w < neighbor.wordCount(); w++) {
+            long word = neighbor.getWord(w) & ~current.getWord(w) & ~requested.getWord(w);
+            if (excludedIndex >= 0 && (excludedIndex >>> 6) == w) word &= ~(1L << excludedIndex);
+            for (; word != 0; word &= word - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                int count = availability.get(i);
+                if (count < bestCount) {
+                    best = i;
+                    bestCount = count;
+                    ties = 1;
+                } else if (count == bestCount && random.nextInt(++ties) == 0) {
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+}
+
+//Blocking reads over the download, usable while pieces are still arriving; each read moves the playback cursor.
+class PieceStream {
+
+    private final StreamingPicker picker;
+    private final long fileSize;
+    private final long pieceSize;
+
+    public PieceStream(StreamingPicker picker, long fileSize, long pieceSize) {
+        this.picker = picker;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+    }
+
+    public synchronized void onPieceCompleted() {
+        notifyAll();
+    }
+
+    private synchronized void awaitPiece(int pieceIndex) throws InterruptedException {
+        while (!peerProcess.currentPeer.hasPiece(pieceIndex)) {
+            wait();
+        }
+    }
+
+    //Blocks until every piece overlapping the range is downloaded.
+    public void awaitRange(long position, long length) throws InterruptedException {
+        if (length <= 0) return;
+        int first = (int) (position / pieceSize);
+        int last = (int) ((Math.min(fileSize, position + length) - 1) / pieceSize);
+        picker.seek(first);
+        for (int i = first; i <= last; i++) {
+            awaitPiece(i);
+        }
+    }
+
+    //Fills the destination from the given file position, waiting for each piece in turn; returns -1 at the end of the file.
+    public int read(long position, ByteBuffer destination) throws IOException, InterruptedException {
+        if (position >= fileSize) return -1;
+        int read = 0;
+        while (destination.hasRemaining() && position < fileSize) {
+            int pieceIndex = (int) (position / pieceSize);
+            picker.seek(pieceIndex);
+            awaitPiece(pieceIndex);
+            int pieceLength = peerProcess.diskWriter.getPieceLength(pieceIndex);
+            int offset = (int) (position - pieceIndex * pieceSize);
+            int chunk = Math.min(destination.remaining(), pieceLength - offset);
+            if (offset == 0 && chunk == pieceLength) {
+                peerProcess.diskWriter.readPiece(pieceIndex, destination);
+            } else {
+                BufferArena.Slab slab = peerProcess.bufferArena.acquire(pieceLength);
+                try {
+                    ByteBuffer piece = slab.buffer();
+                    peerProcess.diskWriter.readPiece(pieceIndex, piece);
+                    piece.flip().position(offset).limit(offset + chunk);
+                    destination.put(piece);
+                } finally {
+                    slab.release();
+                }
+            }
+            position += chunk;
+            read += chunk;
+        }
+        return read;
+    }
+}
+
+//Reads byte ranges of the file from an HTTP server that holds all of it. Connections are kept alive and pooled, and each
+//caller holds its own while a range is in flight, so parallel ranges never queue behind each other on a socket.
+class WebSeed {
+
+    private static final class HttpConnection {
+        private final Socket socket;
+        private final BufferedInputStream input;
+        private final OutputStream output;
+        private final byte[] chunk = new byte[16 << 10];
+
+        HttpConnection(String host, int port) throws IOException {
+            this.socket = new Socket(host, port);
+            this.socket.setSoTimeout(10_000);
+            this.input = new BufferedInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        //Returns whether the server left the connection open for the next range.
+        boolean get(String host, String path, long offset, ByteBuffer destination) throws IOException {
+            long last = offset + destination.remaining() - 1;
+            output.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nRange: bytes=" + offset + "-" + last
+                    + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            String status = readLine();
+            String[] statusWords = status.split(" ");
+            boolean keepAlive = !status.startsWith("HTTP/1.0");
+            long contentLength = -1;
+            String contentRange = "";
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("content-length")) contentLength = Long.parseLong(value);
+                else if (name.equals("content-range")) contentRange = value;
+                else if (name.equals("connection")) keepAlive = value.equalsIgnoreCase("keep-alive");
+            }
+            //Only the exact range asked for is accepted; a server that ignores Range would send the whole file.
+            if (statusWords.length < 2 || !statusWords[1].equals("206") || contentLength != destination.remaining()
+                    || !contentRange.startsWith("bytes " + offset + "-" + last + "/")) {
+                throw new IOException("Web seed answered '" + status + "' with range '" + contentRange + "' for bytes " + offset + "-" + last);
+            }
+            while (destination.hasRemaining()) {
+                int read = input.read(chunk, 0, Math.min(chunk.length, destination.remaining()));
+                if (read < 0) throw new EOFException("Web seed closed the connection mid-range");
+                destination.put(chunk, 0, read);
+            }
+            return keepAlive;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0) throw new EOFException("Web seed closed the connection");
+                if (c != '\r') line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String path;
+    private final ArrayBlockingQueue<HttpConnection> idle;
+    private final AtomicLong rangesFetched = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    public WebSeed(String url, int connections) throws IOException {
+        URI uri = URI.create(url);
+        if (!"http".equals(uri.getScheme()) || uri.getHost() == null) {
+            throw new IOException("Unsupported web seed " + url);
+        }
+        this.host = uri.getHost();
+        this.port = uri.getPort() < 0 ? 80 : uri.getPort();
+        this.path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        this.idle = new ArrayBlockingQueue<>(connections);
+    }
+
+    //Fills the destination with the bytes starting at offset, or throws.
+    public void fetch(long offset, ByteBuffer destination) throws IOException {
+        HttpConnection connection = idle.poll();
+        if (connection == null) {
+            connection = new HttpConnection(host, port);
+            connectionsOpened.incrementAndGet();
+        }
+        int length = destination.remaining();
+        boolean reusable = false;
+        try {
+            reusable = connection.get(host, path, offset, destination);
+            rangesFetched.incrementAndGet();
+            bytesFetched.addAndGet(length);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            if (!reusable || !idle.offer(connection)) connection.close();
+        }
+    }
+
+    public String getStatistics() {
+        return rangesFetched.get() + " ranges, " + bytesFetched.get() + " bytes, " + failures.get() + " failures, "
+                + connectionsOpened.get() + " connections opened";
+    }
+}
+
+class PieceStore {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileChannel.MapMode mapMode;
+    private final long fileSize;
+    private final long pieceSize;
+    private final long windowSize;
+    private final LinkedHashMap<Long, MappedByteBuffer> windows;
+
+    //Maps the file in fixed windows and keeps only the most recently used ones open.
+    public PieceStore(Path path, long fileSize, long pieceSize, long windowSize, int maxWindows, boolean writable) throws IOException {
+        this.file = new RandomAccessFile(path.toFile(), writable ? "rw" : "r");
+        if (writable) {
+            this.file.setLength(fileSize);
+        } else if (this.file.length() < fileSize) {
+            this.file.close();
+            throw new IOException(path + " is shorter than FileSize " + fileSize);
+        }
+        this.channel = file.getChannel();
+        this.mapMode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.windowSize = windowSize;
+        this.windows = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                if (size() <= maxWindows) return false;
+                if (mapMode == FileChannel.MapMode.READ_WRITE) eldest.getValue().force();
+                return true;
+            }
+        };
+    }
+
+    private MappedByteBuffer getWindow(long windowIndex) throws IOException {
+        MappedByteBuffer window = windows.get(windowIndex);
+        if (window == null) {
+            long start = windowIndex * windowSize;
+            window = channel.map(mapMode, start, Math.min(windowSize, fileSize - start));
+            windows.put(windowIndex, window);
+        }
+        return window;
+    }
+
+    private void transfer(long offset, ByteBuffer buffer, int length, boolean write) throws IOException {
+        int done = 0;
+        while (done < length) {
+            long position = offset + done;
+            MappedByteBuffer window = getWindow(position / windowSize);
+            int windowOffset = (int) (position % windowSize);
+            int chunk = Math.min(length - done, window.capacity() - windowOffset);
+            ByteBuffer view = window.duplicate();
+            view.position(windowOffset).limit(windowOffset + chunk);
+            if (write) {
+                ByteBuffer source = buffer.duplicate();
+                source.limit(source.position() + chunk);
+                view.put(source);
+                buffer.position(buffer.position() + chunk);
+            } else {
+                buffer.put(view);
+            }
+            done += chunk;
+        }
+    }
+
+    public int getPieceLength(int pieceIndex) {
+        return (int) Math.min(pieceSize, fileSize - pieceIndex * pieceSize);
+    }
+
+    public synchronized void readPiece(int pieceIndex, ByteBuffer destination) throws IOException {
+        transfer(pieceIndex * pieceSize, destination, getPieceLength(pieceIndex), false);
+    }
+
+    public synchronized void writePiece(int pieceIndex, ByteBuffer piece) throws IOException {
+        transfer(pieceIndex * pieceSize, piece, Math.min(piece.remaining(), getPieceLength(pieceIndex)), true);
+    }
+
+    //Writes a run of consecutive pieces as one sequential write starting at the first piece.
+    public synchronized void writePieces(int firstPieceIndex, ByteBuffer[] pieces) throws IOException {
+        channel.position(firstPieceIndex * pieceSize);
+        long remaining = 0;
+        for (ByteBuffer piece : pieces) remaining += piece.remaining();
+        while (remaining > 0) {
+            remaining -= channel.write(pieces);
+        }
+    }
+
+    public synchronized void force() throws IOException {
+        if (mapMode != FileChannel.MapMode.READ_WRITE) return;
+        for (MappedByteBuffer window : windows.values()) {
+            window.force();
+        }
+        channel.force(false);
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        windows.clear();
+        channel.close();
+        file.close();
+    }
+}
+
+class DiskWriter {
+
+    static final String SYNC_NEVER = "never";
+    static final String SYNC_EVERY_WRITE = "write";
+    static final String SYNC_ON_COMPLETE = "complete";
+
+    private static class PendingWrite {
+        final int pieceIndex;
+        final BufferArena.Slab piece;
+
+        PendingWrite(int pieceIndex, BufferArena.Slab piece) {
+            this.pieceIndex = pieceIndex;
+            this.piece = piece;
+        }
+    }
+
+    private final PieceStore store;
+    private final ArrayBlockingQueue<PendingWrite> queue;
+    private final ConcurrentHashMap<Integer, BufferArena.Slab> pending;
+    private final int coalesceLimit;
+    private final String syncPolicy;
+    private int outstanding = 0;
+    private long writes = 0;
+    private long piecesWritten = 0;
+    private long stalls = 0;
+
+    //Network readers hand pieces over here; a full queue blocks them until the disk catches up.
+    public DiskWriter(PieceStore store, int threads, int queueCapacity, int coalesceLimit, String syncPolicy) {
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.pending = new ConcurrentHashMap<>();
+        this.coalesceLimit = coalesceLimit;
+        this.syncPolicy = syncPolicy;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::drain, "disk-writer-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    //Takes over the caller's reference; the slab's remaining bytes are the piece.
+    public void submit(int pieceIndex, BufferArena.Slab piece) throws InterruptedException {
+        pending.put(pieceIndex, piece);
+        synchronized (this) {
+            outstanding++;
+        }
+        if (!queue.offer(new PendingWrite(pieceIndex, piece))) {
+            synchronized (this) {
+                stalls++;
+            }
+            queue.put(new PendingWrite(pieceIndex, piece));
+        }
+    }
+
+    //Pieces still queued are served from memory so a HAVE can go out before the write lands.
+    public void readPiece(int pieceIndex, ByteBuffer destination) throws IOException {
+        //Retaining inside the map operation keeps the slab alive against the writer releasing it.
+        BufferArena.Slab piece = pending.computeIfPresent(pieceIndex, (index, slab) -> slab.retain());
+        if (piece == null) {
+            store.readPiece(pieceIndex, destination);
+            return;
+        }
+        try {
+            destination.put(piece.buffer().duplicate());
+        } finally {
+            piece.release();
+        }
+    }
+
+    public int getPieceLength(int pieceIndex) {
+        return store.getPieceLength(pieceIndex);
+    }
+
+    public void flush() throws IOException, InterruptedException {
+        synchronized (this) {
+            while (outstanding > 0) {
+                wait();
+            }
+        }
+        if (!SYNC_NEVER.equals(syncPolicy)) {
+            store.force();
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return piecesWritten + " pieces in " + writes + " writes, " + stalls + " reader stalls";
+    }
+
+    private void drain() {
+        ArrayList<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, coalesceLimit - 1);
+                batch.sort(Comparator.comparingInt(write -> write.pieceIndex));
+                int start = 0;
+                for (int i = 1; i <= batch.size(); i++) {
+                    if (i == batch.size() || batch.get(i).pieceIndex != batch.get(i - 1).pieceIndex + 1) {
+                        writeRun(batch.subList(start, i));
+                        start = i;
+                    }
+                }
+                if (SYNC_EVERY_WRITE.equals(syncPolicy)) {
+                    store.force();
+                }
+            } catch (IOException e) {
+                //These pieces are already marked held and may have been announced, so carrying on would serve data that
+                //never reached the disk. A peer that cannot write its file stops, still holding the slabs.
+                e.printStackTrace();
+                peerProcess.logger.logError("Peer " + peerProcess.currentPeerId + " could not write pieces " + batch.get(0).pieceIndex
+                        + " to " + batch.get(batch.size() - 1).pieceIndex + " and is stopping: " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                for (PendingWrite write : batch) {
+                    pending.remove(write.pieceIndex, write.piece);
+                    write.piece.release();
+                }
+                synchronized (this) {
+                    outstanding -= batch.size();
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writeRun(List<PendingWrite> run) throws IOException {
+        FlightEvents.DiskWrite event = new FlightEvents.DiskWrite();
+        event.begin();
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        long bytes = 0;
+        for (int i = 0; i < run.size(); i++) {
+            buffers[i] = run.get(i).piece.buffer().duplicate();
+            bytes += buffers[i].remaining();
+        }
+        store.writePieces(run.get(0).pieceIndex, buffers);
+        event.end();
+        if (event.shouldCommit()) {
+            event.firstPiece = run.get(0).pieceIndex;
+            event.pieces = run.size();
+            event.bytes = bytes;
+            event.commit();
+        }
+        synchronized (this) {
+            writes++;
+            piecesWritten += run.size();
+        }
+    }
+}
+
+class PieceCache {
+
+    private final DiskWriter source;
+    private final BufferArena arena;
+    private volatile long maxBytes;
+    private volatile int readAheadPieces;
+    private final LinkedHashMap<Integer, BufferArena.Slab> pieces;
+    private final IntIntMap lastRequested;
+    private final ExecutorService prefetcher;
+    private long cachedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long prefetched = 0;
+    private long evictions = 0;
+
+    //Hot pieces live in direct buffers so a flash crowd is served without rereading the disk or growing the heap.
+    public PieceCache(DiskWriter source, BufferArena arena, long maxBytes, int readAheadPieces) {
+        this.source = source;
+        this.arena = arena;
+        this.maxBytes = maxBytes;
+        this.readAheadPieces = readAheadPieces;
+        this.pieces = new LinkedHashMap<>(16, 0.75f, true);
+        this.lastRequested = new IntIntMap(-1);
+        this.prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "piece-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        arena.setReclaimer(this::evictEldest);
+    }
+
+    public void readPiece(int pieceIndex, int requesterId, ByteBuffer destination) throws IOException {
+        BufferArena.Slab cached;
+        synchronized (this) {
+            cached = pieces.get(pieceIndex);
+            if (cached != null) {
+                hits++;
+                cached.retain();
+            } else {
+                misses++;
+            }
+            int previous = lastRequested.put(requesterId, pieceIndex);
+            if (previous != -1 && previous == pieceIndex - 1 && readAheadPieces > 0) {
+                prefetcher.execute(() -> readAhead(pieceIndex + 1));
+            }
+        }
+        if (cached == null) {
+            cached = load(pieceIndex);
+        }
+        if (cached == null) {
+            source.readPiece(pieceIndex, destination);
+            return;
+        }
+        try {
+            destination.put(cached.buffer().duplicate());
+        } finally {
+            cached.release();
+        }
+    }
+
+    private void readAhead(int firstPieceIndex) {
+        AtomicBitSet bitfield = peerProcess.currentPeer.getBitField();
+        for (int i = firstPieceIndex; i < firstPieceIndex + readAheadPieces && i < bitfield.size(); i++) {
+            synchronized (this) {
+                if (!bitfield.get(i) || pieces.containsKey(i)) continue;
+                prefetched++;
+            }
+            try {
+                BufferArena.Slab loaded = load(i);
+                if (loaded == null) return;
+                loaded.release();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    //Returns the piece in a retained slab, or null when it is not worth caching or the arena has none to spare.
+    //Never blocks on the arena, so an uploader already holding a frame slab cannot wait on itself.
+    private BufferArena.Slab load(int pieceIndex) throws IOException {
+        int length = source.getPieceLength(pieceIndex);
+        if (maxBytes < length) return null;
+        BufferArena.Slab slab = arena.tryAcquire(length);
+        while (slab == null && evictEldest()) {
+            slab = arena.tryAcquire(length);
+        }
+        if (slab == null) return null;
+        try {
+            source.readPiece(pieceIndex, slab.buffer());
+        } catch (IOException e) {
+            slab.release();
+            throw e;
+        }
+        slab.buffer().flip();
+        synchronized (this) {
+            BufferArena.Slab previous = pieces.put(pieceIndex, slab.retain());
+            if (previous == null) {
+                cachedBytes += length;
+            } else {
+                previous.release();
+            }
+            while (cachedBytes > maxBytes && evictEldest()) {
+            }
+        }
+        return slab;
+    }
+
+    public synchronized void setLimits(long maxBytes, int readAheadPieces) {
+        this.maxBytes = maxBytes;
+        this.readAheadPieces = readAheadPieces;
+        while (cachedBytes > maxBytes && evictEldest()) {
+        }
+    }
+
+    private synchronized boolean evictEldest() {
+        Iterator<BufferArena.Slab> eldest = pieces.values().iterator();
+        if (!eldest.hasNext()) return false;
+        BufferArena.Slab slab = eldest.next();
+        eldest.remove();
+        cachedBytes -= slab.buffer().limit();
+        evictions++;
+        slab.release();
+        return true;
+    }
+
+    public synchronized String getStatistics() {
+        long requests = hits + misses;
+        double hitRate = requests == 0 ? 0 : (hits * 100.0) / requests;
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d prefetched, %d evicted, %d bytes cached",
+                hits, misses, hitRate, prefetched, evictions, cachedBytes);
+    }
+}
+
+//Systematic Reed-Solomon over GF(2^8). A group of up to k source pieces gets repair pieces whose rows come from a
+//Cauchy matrix, x_j = k + j against y_i = i, so every square submatrix of the generator is invertible and any k' pieces
+//of a group of k' sources rebuild it. Pieces shorter than the rest count as zero-padded.
+class ReedSolomon {
+
+    private static final byte[][] MULTIPLY = new byte[256][256];
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= 0x11d;
+        }
+        for (int i = 255; i < 512; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int groupSize;
+
+    public ReedSolomon(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    //Row id of repair piece j; sources use their own position in the group.
+    public int repairRow(int repair) {
+        return groupSize + repair;
+    }
+
+    private static int multiply(int a, int b) {
+        return MULTIPLY[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    private int coefficient(int row, int source) {
+        return row < groupSize ? (row == source ? 1 : 0) : inverse(row ^ source);
+    }
+
+    public void encode(int repair, byte[][] sources, byte[] output) {
+        Arrays.fill(output, (byte) 0);
+        for (int i = 0; i < sources.length; i++) {
+            addMultiple(output, sources[i], coefficient(repairRow(repair), i));
+        }
+    }
+
+    //Rebuilds the wanted sources from as many rows as the group has sources, each row a source or a repair piece.
+    public byte[][] decode(int sources, int[] rows, byte[][] data, int[] wanted, int length) {
+        int[][] matrix = new int[sources][sources];
+        for (int r = 0; r < sources; r++) {
+            for (int c = 0; c < sources; c++) {
+                matrix[r][c] = coefficient(rows[r], c);
+            }
+        }
+        int[][] inverted = invert(matrix);
+        byte[][] recovered = new byte[wanted.length][];
+        for (int w = 0; w < wanted.length; w++) {
+            recovered[w] = new byte[length];
+            for (int r = 0; r < sources; r++) {
+                addMultiple(recovered[w], data[r], inverted[wanted[w]][r]);
+            }
+        }
+        return recovered;
+    }
+
+    private static void addMultiple(byte[] target, byte[] source, int factor) {
+        if (factor == 0) return;
+        byte[] row = MULTIPLY[factor];
+        for (int b = 0; b < target.length; b++) {
+            target[b] ^= row[source[b] & 0xff];
+        }
+    }
+
+    //Gauss-Jordan elimination; addition in GF(2^8) is XOR.
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            inverse[i][i] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (matrix[pivot][column] == 0) pivot++;
+            int[] swap = matrix[pivot];
+            matrix[pivot] = matrix[column];
+            matrix[column] = swap;
+            swap = inverse[pivot];
+            inverse[pivot] = inverse[column];
+            inverse[column] = swap;
+            int scale = inverse(matrix[column][column]);
+            for (int c = 0; c < n; c++) {
+                matrix[column][c] = multiply(matrix[column][c], scale);
+                inverse[column][c] = multiply(inverse[column][c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = matrix[r][column];
+                if (r == column || factor == 0) continue;
+                for (int c = 0; c < n; c++) {
+                    matrix[r][c] ^= multiply(factor, matrix[column][c]);
+                    inverse[r][c] ^= multiply(factor, inverse[column][c]);
+                }
+            }
+        }
+        return inverse;
+    }
+}
+
+//Pieces kept by SHA-256 outside any peer directory, so they outlive the session and any file they came from. Each piece
+//is a file under objects/ named by its hash; the index file records size and last use for eviction and is merged with
+//what other peers sharing the store wrote before it is replaced. Reads re-hash the bytes, so a damaged or half-evicted
+//object is only ever a miss.
+class ContentStore {
+
+    static final int HASH_LENGTH = 32;
+    private static final HexFormat HEX = HexFormat.of();
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path root;
+    private final Path objects;
+    private final long maxBytes;
+    //Hash to {size, last use in ms}.
+    private final HashMap<String, long[]> entries = new HashMap<>();
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long added = 0;
+    private long evicted = 0;
+
+    public ContentStore(Path root, long maxBytes) throws IOException {
+        this.root = root;
+        this.objects = root.resolve("objects");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(objects);
+        readIndex(entries);
+        for (long[] entry : entries.values()) {
+            totalBytes += entry[0];
+        }
+    }
+
+    public static byte[] digest(ByteBuffer piece) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(piece.duplicate());
+        return digest.digest();
+    }
+
+    //Fills the destination with the piece stored under the hash; false, with the destination as it was, when there is
+    //none whose bytes still match.
+    public boolean read(byte[] hash, ByteBuffer destination) {
+        String name = HEX.formatHex(hash);
+        Path object = objects.resolve(name);
+        int start = destination.position();
+        try (FileChannel channel = FileChannel.open(object, StandardOpenOption.READ)) {
+            if (channel.size() != destination.remaining()) return miss();
+            while (destination.hasRemaining()) {
+                if (channel.read(destination) < 0) {
+                    destination.position(start);
+                    return miss();
+                }
+            }
+        } catch (IOException e) {
+            destination.position(start);
+            return miss();
+        }
+        ByteBuffer stored = destination.duplicate();
+        stored.flip().position(start);
+        //A damaged object is removed so the next copy of the piece to come by replaces it.
+        if (!Arrays.equals(digest(stored), hash)) {
+            destination.position(start);
+            try {
+                Files.deleteIfExists(object);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                long[] entry = entries.remove(name);
+                if (entry != null) totalBytes -= entry[0];
+            }
+            return miss();
+        }
+        synchronized (this) {
+            hits++;
+            long[] entry = entries.get(name);
+            if (entry == null) {
+                entries.put(name, new long[]{stored.remaining(), System.currentTimeMillis()});
+                totalBytes += stored.remaining();
+            } else {
+                entry[1] = System.currentTimeMillis();
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(byte[] hash) {
+        String name = HEX.formatHex(hash);
+        synchronized (this) {
+            if (entries.containsKey(name)) return true;
+        }
+        return Files.exists(objects.resolve(name));
+    }
+
+    private synchronized boolean miss() {
+        misses++;
+        return false;
+    }
+
+    //Stores the piece under its own hash, which is returned. The copy goes in under a temporary name first so a
+    //reader in another process never sees half of it.
+    public byte[] put(ByteBuffer piece) throws IOException {
+        byte[] hash = digest(piece);
+        String name = HEX.formatHex(hash);
+        synchronized (this) {
+            long[] entry = entries.get(name);
+            if (entry != null && Files.exists(objects.resolve(name))) {
+                entry[1] = System.currentTimeMillis();
+                return hash;
+            }
+        }
+        Path temporary = Files.createTempFile(objects, name, ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            ByteBuffer source = piece.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+        Files.move(temporary, objects.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            if (entries.put(name, new long[]{piece.remaining(), System.currentTimeMillis()}) == null) {
+                totalBytes += piece.remaining();
+                added++;
+            }
+            if (totalBytes > maxBytes) evict();
+        }
+        return hash;
+    }
+
+    //Drops least recently used pieces until the store is back under nine tenths of its limit, so eviction runs in batches.
+    private void evict() {
+        ArrayList<Map.Entry<String, long[]>> byAge = new ArrayList<>(entries.entrySet());
+        byAge.sort(Comparator.comparingLong(entry -> entry.getValue()[1]));
+        for (Map.Entry<String, long[]> entry : byAge) {
+            if (totalBytes <= maxBytes - maxBytes / 10) break;
+            try {
+                Files.deleteIfExists(objects.resolve(entry.getKey()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            entries.remove(entry.getKey());
+            totalBytes -= entry.getValue()[0];
+            evicted++;
+        }
+    }
+
+    private void readIndex(Map<String, long[]> into) throws IOException {
+        Path index = root.resolve("index");
+        if (!Files.exists(index)) return;
+        for (String line : Files.readAllLines(index)) {
+            String[] words = line.split(" ");
+            if (words.length != 3) continue;
+            long[] entry = new long[]{Long.parseLong(words[1]), Long.parseLong(words[2])};
+            long[] known = into.get(words[0]);
+            if (known == null || known[1] < entry[1]) into.put(words[0], entry);
+        }
+    }
+
+    //Peers sharing the store write their indexes one at a time under a file lock, each keeping what the others added.
+    public synchronized void save() throws IOException {
+        try (FileChannel lockFile = FileChannel.open(root.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockFile.lock();
+            try {
+                HashMap<String, long[]> merged = new HashMap<>();
+                readIndex(merged);
+                for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                    long[] known = merged.get(entry.getKey());
+                    if (known == null || known[1] < entry.getValue()[1]) merged.put(entry.getKey(), entry.getValue());
+                }
+                entries.clear();
+                totalBytes = 0;
+                for (Map.Entry<String, long[]> entry : merged.entrySet()) {
+                    if (Files.exists(objects.resolve(entry.getKey()))) {
+                        entries.put(entry.getKey(), entry.getValue());
+                        totalBytes += entry.getValue()[0];
+                    }
+                }
+                if (totalBytes > maxBytes) evict();
+                StringBuilder index = new StringBuilder();
+                for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+                    index.append(entry.getKey()).append(' ').append(entry.getValue()[0]).append(' ').append(entry.getValue()[1]).append('\n');
+                }
+                Path temporary = Files.createTempFile(root, "index", ".tmp");
+                Files.write(temporary, index.toString().getBytes(StandardCharsets.US_ASCII));
+                Files.move(temporary, root.resolve("index"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return entries.size() + " pieces, " + totalBytes + " bytes stored, " + hits + " hits, " + misses + " misses, "
+                + added + " added, " + evicted + " evicted";
+    }
+}
+
+//Deflates pieces for neighbours that negotiated COMPRESSION. A piece is sent deflated only when that saves at least a
+//sixteenth of it; the outcome is remembered per piece, deflated copies in an LRU bounded by CompressionCacheSize and
+//incompressible pieces in a bitset, so repeat uploads of a piece cost no CPU. The JDK's deflate at its fastest level
+//is the codec, since it is the one available without a dependency.
+class PieceCompressor {
+
+    private final PieceCache source;
+    private final BufferArena arena;
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, byte[]> deflated = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicBitSet incompressible;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private long cachedBytes = 0;
+    private long hits = 0;
+    private long piecesDeflated = 0;
+    private long piecesIncompressible = 0;
+    private long deflateNanos = 0;
+    private long rawBytesSent = 0;
+    private long wireBytesSent = 0;
+    private long piecesInflated = 0;
+    private long inflatedBytes = 0;
+    private long wireBytesReceived = 0;
+    private long inflateNanos = 0;
+
+    public PieceCompressor(PieceCache source, BufferArena arena, int totalPieces, long maxBytes) {
+        this.source = source;
+        this.arena = arena;
+        this.incompressible = new AtomicBitSet(totalPieces);
+        this.maxBytes = maxBytes;
+    }
+
+    //Returns the deflated piece, or null when it goes out raw.
+    public byte[] getDeflated(int pieceIndex, int requesterId, int pieceLength) throws IOException, InterruptedException {
+        if (incompressible.get(pieceIndex)) return null;
+        synchronized (this) {
+            byte[] cached = deflated.get(pieceIndex);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+        }
+        BufferArena.Slab piece = arena.acquire(pieceLength);
+        try {
+            source.readPiece(pieceIndex, requesterId, piece.buffer());
+            piece.buffer().flip();
+            long started = cpuTime();
+            Deflater deflater = deflaters.get();
+            byte[] output = new byte[pieceLength - pieceLength / 16];
+            int length;
+            try {
+                deflater.setInput(piece.buffer());
+                deflater.finish();
+                length = deflater.deflate(output);
+                if (!deflater.finished()) length = -1;
+            } finally {
+                deflater.reset();
+            }
+            long spent = cpuTime() - started;
+            synchronized (this) {
+                deflateNanos += spent;
+                if (length < 0) {
+                    piecesIncompressible++;
+                    incompressible.set(pieceIndex);
+                    return null;
+                }
+                piecesDeflated++;
+                byte[] result = Arrays.copyOf(output, length);
+                if (result.length <= maxBytes && deflated.put(pieceIndex, result) == null) {
+                    cachedBytes += result.length;
+                    Iterator<byte[]> eldest = deflated.values().iterator();
+                    while (cachedBytes > maxBytes) {
+                        cachedBytes -= eldest.next().length;
+                        eldest.remove();
+                    }
+                }
+                return result;
+            }
+        } finally {
+            piece.release();
+        }
+    }
+
+    public synchronized void onPieceSent(int rawBytes, int wireBytes) {
+        rawBytesSent += rawBytes;
+        wireBytesSent += wireBytes;
+    }
+
+    //True only when the input inflates to exactly the space left in the destination.
+    public boolean inflate(ByteBuffer input, ByteBuffer destination) {
+        int wireBytes = input.remaining();
+        int expected = destination.remaining();
+        long started = cpuTime();
+        Inflater inflater = inflaters.get();
+        boolean complete;
+        try {
+            inflater.setInput(input);
+            while (!inflater.finished() && destination.hasRemaining()) {
+                if (inflater.inflate(destination) == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+            }
+            complete = inflater.finished() && !destination.hasRemaining();
+        } catch (DataFormatException e) {
+            complete = false;
+        } finally {
+            inflater.reset();
+        }
+        long spent = cpuTime() - started;
+        synchronized (this) {
+            inflateNanos += spent;
+            if (complete) {
+                piecesInflated++;
+                inflatedBytes += expected;
+                wireBytesReceived += wireBytes;
+            }
+        }
+        return complete;
+    }
+
+    private long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("sent %d bytes as %d (ratio %.2f), %d pieces deflated, %d incompressible, %d cache hits, %d bytes cached, "
+                        + "%.1f ms deflating; received %d pieces inflated from %d to %d bytes, %.1f ms inflating",
+                rawBytesSent, wireBytesSent, wireBytesSent == 0 ? 1.0 : rawBytesSent / (double) wireBytesSent, piecesDeflated,
+                piecesIncompressible, hits, cachedBytes, deflateNanos / 1e6, piecesInflated, wireBytesReceived, inflatedBytes,
+                inflateNanos / 1e6);
+    }
+}
+
+//Appends every frame on every connection to a binary trace through a memory-mapped window that slides along the file.
+//The header holds magic, version, peer id, hasFile and the start time in ms; each record holds the time since the start
+//in ns, the neighbour id, the kind, the payload length and the payload. A frame's payload is its type byte and body,
+//a connect record's is the negotiated capabilities.
+class TraceRecorder {
+
+    static final int MAGIC = 0x42545452;
+    static final int VERSION = 1;
+    static final byte CONNECT = 0;
+    static final byte RECEIVED = 1;
+    static final byte SENT = 2;
+    static final int RECORD_HEADER_LENGTH = 17;
+    private static final int WINDOW = 16 << 20;
+
+    private final FileChannel channel;
+    private final long maxBytes;
+    private final long startNanos = System.nanoTime();
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private long records = 0;
+    private boolean full = false;
+    private boolean closed = false;
+
+    public TraceRecorder(Path path, int peerId, int hasFile, long maxBytes) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.maxBytes = maxBytes;
+        this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW);
+        window.putInt(MAGIC).putInt(VERSION).putInt(peerId).putInt(hasFile).putLong(System.currentTimeMillis());
+    }
+
+    public void connected(int peer, long capabilities) {
+        append(peer, CONNECT, -1, ByteBuffer.allocate(8).putLong(0, capabilities));
+    }
+
+    //The type travels apart from the body so neither the reader nor a writer has to copy them together first.
+    public synchronized void append(int peer, byte kind, int type, ByteBuffer body) {
+        if (closed || full) return;
+        int length = (type < 0 ? 0 : 1) + body.remaining();
+        long position = windowStart + window.position();
+        if (position + RECORD_HEADER_LENGTH + length > maxBytes) {
+            full = true;
+            System.out.println("Trace reached its size limit of " + maxBytes + " bytes after " + records + " records");
+            return;
+        }
+        try {
+            if (window.remaining() < RECORD_HEADER_LENGTH + length) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW, RECORD_HEADER_LENGTH + length));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closed = true;
+            return;
+        }
+        window.putLong(System.nanoTime() - startNanos).putInt(peer).put(kind).putInt(length);
+        if (type >= 0) window.put((byte) type);
+        window.put(body.duplicate());
+        records++;
+    }
+
+    //An outgoing packet may hold several frames back to back; each becomes a record of its own.
+    public void appendSent(int peer, ByteBuffer packet) {
+        ByteBuffer frames = packet.duplicate();
+        while (frames.remaining() >= 5) {
+            int frameLength = frames.getInt();
+            if (frameLength < 1 || frameLength > frames.remaining()) return;
+            int type = frames.get() & 0xff;
+            ByteBuffer body = frames.slice();
+            body.limit(frameLength - 1);
+            append(peer, SENT, type, body);
+            frames.position(frames.position() + frameLength - 1);
+        }
+    }
+
+    //The mapping runs past the last record, so the file is cut back to what was written.
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            window.force();
+            channel.truncate(windowStart + window.position());
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return records + " records, " + (windowStart + window.position()) + " bytes" + (full ? ", stopped at the size limit" : "");
+    }
+}
+
+//Carries every UDP link of this peer over one datagram socket bound to the peer's listening port; the sender's peer id
+//in each header picks the link. Loss and delay can be injected on the send path to exercise the links over loopback.
+class UdpTransport {
+
+    private static final long DRAIN_TIMEOUT_NANOS = 2_000_000_000L;
+
+    private final DatagramSocket socket;
+    private final int localPeerId;
+    private final int targetDelayMicros;
+    private final double lossRate;
+    private final long delayNanos;
+    private final TimerWheel delayWheel;
+    private final ConcurrentIntMap<UtpConnection> connections = new ConcurrentIntMap<>();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    public UdpTransport(int localPeerId, int port, int targetDelayMillis, double lossRate, int delayMillis) throws IOException {
+        this.socket = new DatagramSocket(port);
+        this.socket.setReceiveBufferSize(4 << 20);
+        this.socket.setSendBufferSize(4 << 20);
+        this.localPeerId = localPeerId;
+        this.targetDelayMicros = targetDelayMillis * 1000;
+        this.lossRate = lossRate;
+        this.delayNanos = delayMillis * 1_000_000L;
+        this.delayWheel = delayMillis > 0 ? new TimerWheel("udp-delay", 1, 1024) : null;
+        Thread receiver = new Thread(this::receive, "udp-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread clock = new Thread(this::tick, "udp-clock");
+        clock.setDaemon(true);
+        clock.start();
+        //Unlike TCP, nothing delivers queued bytes once the process is gone, so exit waits briefly for the links to drain.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "udp-drain"));
+    }
+
+    //Registers the link before the handshake reply goes out, so the first datagrams from the other side find it.
+    public UtpConnection open(int remotePeerId, InetSocketAddress remote, Closeable control) {
+        UtpConnection connection = new UtpConnection(this, remotePeerId, remote, targetDelayMicros, control);
+        connections.put(remotePeerId, connection);
+        return connection;
+    }
+
+    void unregister(int remotePeerId, UtpConnection connection) {
+        if (connections.get(remotePeerId) == connection) connections.remove(remotePeerId);
+    }
+
+    public int getLocalPeerId() {
+        return localPeerId;
+    }
+
+    public List<UtpConnection> getConnections() {
+        return connections.values();
+    }
+
+    void send(byte[] packet, InetSocketAddress remote) {
+        packetsSent.incrementAndGet();
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            packetsDropped.incrementAndGet();
+            return;
+        }
+        if (delayWheel != null) {
+            delayWheel.schedule(delayNanos, () -> transmit(packet, remote));
+        } else {
+            transmit(packet, remote);
+        }
+    }
+
+    private void transmit(byte[] packet, InetSocketAddress remote) {
+        try {
+            socket.send(new DatagramPacket(packet, packet.length, remote));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65536];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                datagram.setLength(buffer.length);
+                socket.receive(datagram);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (datagram.getLength() < UtpConnection.HEADER_LENGTH) continue;
+            packetsReceived.incrementAndGet();
+            ByteBuffer packet = ByteBuffer.wrap(buffer, 0, datagram.getLength());
+            UtpConnection connection = connections.get(packet.getInt(1));
+            if (connection != null) connection.onPacket(packet);
+        }
+    }
+
+    private void drain() {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        for (UtpConnection connection : connections.values()) {
+            connection.awaitDrained(deadline);
+        }
+    }
+
+    private void tick() {
+        while (true) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (UtpConnection connection : connections.values()) {
+                connection.tick(now);
+            }
+        }
+    }
+
+    public String getStatistics() {
+        return packetsSent.get() + " packets sent, " + packetsReceived.get() + " received, "
+                + packetsDropped.get() + " dropped by injection";
+    }
+}
+
+//One reliable, ordered byte stream over UDP. The congestion window follows LEDBAT: it grows while the one-way
+//queuing delay stays under the target and shrinks as the delay rises, so bulk piece traffic backs off before router
+//buffers fill. Losses are repaired on three duplicate acks or a retransmission timeout.
+class UtpConnection {
+
+    static final byte DATA = 0;
+    static final byte ACK = 1;
+    //type, sender id, sequence, cumulative ack, timestamp, echoed delay, receive window
+    static final int HEADER_LENGTH = 25;
+    static final int MSS = 1200;
+    private static final int MIN_WINDOW = 2 * MSS;
+    private static final int MAX_WINDOW = 4 << 20;
+    private static final int BUFFER_LIMIT = 1 << 20;
+    private static final int MAX_REORDER = 4096;
+    private static final long MIN_RTO_NANOS = 200_000_000L;
+    private static final int MAX_TRANSMISSIONS = 8;
+    private static final int BASE_DELAY_MINUTES = 10;
+
+    private static final class Segment {
+        final byte[] data = new byte[MSS];
+        int length;
+        int seq;
+        long sentAt;
+        int transmissions;
+    }
+
+    private final UdpTransport transport;
+    private final int remotePeerId;
+    private final InetSocketAddress remote;
+    private final int targetDelayMicros;
+    private final Closeable control;
+
+    private final ArrayDeque<Segment> unsent = new ArrayDeque<>();
+    private final ArrayDeque<Segment> inflight = new ArrayDeque<>();
+    private int unsentBytes = 0;
+    private int inflightBytes = 0;
+    private int nextSeq = 1;
+    private double window = MIN_WINDOW;
+    private int peerWindow = BUFFER_LIMIT;
+    private int duplicateAcks = 0;
+    private long srtt = 0;
+    private long rttvar = 0;
+    private long rto = 1_000_000_000L;
+    private int backoff = 1;
+    private long retransmissions = 0;
+
+    //Minimum one-way delay seen in each of the last ten minutes; the smallest is the base the queuing delay is measured from.
+    private final int[] baseDelays = new int[BASE_DELAY_MINUTES];
+    private int baseDelayCount = 0;
+    private long baseDelayMinute = -1;
+    private int queuingDelay = 0;
+
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private final HashMap<Integer, byte[]> outOfOrder = new HashMap<>();
+    private int receivedOffset = 0;
+    private int receivedBytes = 0;
+    private int receiveNext = 1;
+    private int echoDelay = 0;
+    private IOException failure;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return UtpConnection.this.read(b, off, len);
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            UtpConnection.this.write(b, off, len);
+        }
+    };
+
+    UtpConnection(UdpTransport transport, int remotePeerId, InetSocketAddress remote, int targetDelayMicros, Closeable control) {
+        this.transport = transport;
+        this.remotePeerId = remotePeerId;
+        this.remote = remote;
+        this.targetDelayMicros = targetDelayMicros;
+        this.control = control;
+    }
+
+    public int getRemotePeerId() {
+        return remotePeerId;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private static int micros() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        try {
+            while (receivedBytes == 0) {
+                if (failure != null) throw failure;
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        int read = 0;
+        while (read < len && !received.isEmpty()) {
+            byte[] head = received.peekFirst();
+            int n = Math.min(len - read, head.length - receivedOffset);
+            System.arraycopy(head, receivedOffset, b, off + read, n);
+            read += n;
+            receivedOffset += n;
+            if (receivedOffset == head.length) {
+                received.pollFirst();
+                receivedOffset = 0;
+            }
+        }
+        receivedBytes -= read;
+        return read;
+    }
+
+    //Blocks while a full send buffer is waiting on the window, which is what pushes back on the uploading thread.
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            try {
+                while (unsentBytes + inflightBytes >= BUFFER_LIMIT && failure == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (failure != null) throw failure;
+            Segment last = unsent.peekLast();
+            if (last == null || last.length == MSS) {
+                last = new Segment();
+                unsent.addLast(last);
+            }
+            int n = Math.min(len, MSS - last.length);
+            System.arraycopy(b, off, last.data, last.length, n);
+            last.length += n;
+            unsentBytes += n;
+            off += n;
+            len -= n;
+        }
+        transmitPending();
+    }
+
+    //An empty flight always gets one segment out, which doubles as the probe when the receiver's window is closed.
+    private void transmitPending() {
+        while (!unsent.isEmpty()) {
+            Segment segment = unsent.peekFirst();
+            if (!inflight.isEmpty() && inflightBytes + segment.length > Math.min(window, peerWindow)) break;
+            unsent.pollFirst();
+            unsentBytes -= segment.length;
+            segment.seq = nextSeq++;
+            inflight.addLast(segment);
+            inflightBytes += segment.length;
+            transmit(segment);
+        }
+    }
+
+    private void transmit(Segment segment) {
+        segment.sentAt = System.nanoTime();
+        segment.transmissions++;
+        sendPacket(DATA, segment.seq, segment.data, segment.length);
+    }
+
+    private void sendPacket(byte type, int seq, byte[] data, int length) {
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_LENGTH + length);
+        packet.put(type).putInt(transport.getLocalPeerId()).putInt(seq).putInt(receiveNext)
+                .putInt(micros()).putInt(echoDelay).putInt(Math.max(0, BUFFER_LIMIT - receivedBytes));
+        if (length > 0) packet.put(data, 0, length);
+        transport.send(packet.array(), remote);
+    }
+
+    synchronized void onPacket(ByteBuffer packet) {
+        if (failure != null) return;
+        byte type = packet.get();
+        packet.getInt();
+        int seq = packet.getInt();
+        int ack = packet.getInt();
+        int timestamp = packet.getInt();
+        int delay = packet.getInt();
+        int receiveWindow = packet.getInt();
+        //The clocks of the two peers differ by an unknown offset; it cancels out against the base delay.
+        echoDelay = micros() - timestamp;
+        onAck(ack, delay, receiveWindow, type == ACK);
+        if (type == DATA) {
+            onData(seq, packet);
+            sendPacket(ACK, 0, null, 0);
+        }
+    }
+
+    private void onAck(int ack, int delay, int receiveWindow, boolean pureAck) {
+        peerWindow = receiveWindow;
+        boolean windowLimited = inflightBytes + MSS >= window;
+        int acked = 0;
+        long now = System.nanoTime();
+        while (!inflight.isEmpty() && inflight.peekFirst().seq - ack < 0) {
+            Segment segment = inflight.pollFirst();
+            inflightBytes -= segment.length;
+            acked += segment.length;
+            if (segment.transmissions == 1) sampleRtt(now - segment.sentAt);
+        }
+        if (acked > 0) {
+            duplicateAcks = 0;
+            backoff = 1;
+            onDelaySample(delay, acked, windowLimited);
+            notifyAll();
+        } else if (pureAck && !inflight.isEmpty() && inflight.peekFirst().seq == ack && ++duplicateAcks == 3) {
+            window = Math.max(MIN_WINDOW, window / 2);
+            retransmissions++;
+            transmit(inflight.peekFirst());
+        }
+        transmitPending();
+    }
+
+    private void sampleRtt(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_NANOS, srtt + 4 * rttvar);
+    }
+
+    private void onDelaySample(int delay, int acked, boolean windowLimited) {
+        long minute = System.nanoTime() / 60_000_000_000L;
+        int slot = (int) (minute % BASE_DELAY_MINUTES);
+        if (minute != baseDelayMinute) {
+            baseDelayMinute = minute;
+            baseDelays[slot] = delay;
+            baseDelayCount = Math.min(BASE_DELAY_MINUTES, baseDelayCount + 1);
+        } else if (delay - baseDelays[slot] < 0) {
+            baseDelays[slot] = delay;
+        }
+        int base = delay;
+        for (int i = 0; i < baseDelayCount; i++) {
+            int candidate = baseDelays[(slot - i + BASE_DELAY_MINUTES) % BASE_DELAY_MINUTES];
+            if (candidate - base < 0) base = candidate;
+        }
+        queuingDelay = delay - base;
+        double offTarget = (targetDelayMicros - queuingDelay) / (double) targetDelayMicros;
+        //A link that is not using its window gets no credit for it, as in RFC 6817.
+        if (offTarget > 0 && !windowLimited) return;
+        window += offTarget * acked * MSS / window;
+        window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+    }
+
+    private void onData(int seq, ByteBuffer packet) {
+        int distance = seq - receiveNext;
+        if (distance < 0 || distance >= MAX_REORDER) return;
+        byte[] payload = new byte[packet.remaining()];
+        packet.get(payload);
+        if (distance > 0) {
+            outOfOrder.putIfAbsent(seq, payload);
+            return;
+        }
+        deliver(payload);
+        byte[] next;
+        while ((next = outOfOrder.remove(receiveNext)) != null) {
+            deliver(next);
+        }
+        notifyAll();
+    }
+
+    private void deliver(byte[] payload) {
+        receiveNext++;
+        if (payload.length == 0) return;
+        received.addLast(payload);
+        receivedBytes += payload.length;
+    }
+
+    synchronized void awaitDrained(long deadline) {
+        long remaining;
+        while ((!inflight.isEmpty() || !unsent.isEmpty()) && failure == null && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                wait(remaining / 1_000_000L + 1);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    synchronized void tick(long now) {
+        if (failure != null || inflight.isEmpty()) return;
+        Segment first = inflight.peekFirst();
+        if (now - first.sentAt < rto * backoff) return;
+        if (first.transmissions >= MAX_TRANSMISSIONS) {
+            fail(new IOException("UDP link to peer " + remotePeerId + " timed out"));
+            return;
+        }
+        window = MIN_WINDOW;
+        backoff = Math.min(backoff * 2, 64);
+        duplicateAcks = 0;
+        retransmissions++;
+        transmit(first);
+    }
+
+    //Called when the control connection closes; readers drain what already arrived and then see the end of the stream.
+    public synchronized void abort() {
+        if (failure == null) fail(new EOFException("Peer " + remotePeerId + " closed the connection"));
+    }
+
+    private void fail(IOException cause) {
+        failure = cause;
+        notifyAll();
+        transport.unregister(remotePeerId, this);
+        try {
+            control.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("window %.1f KiB, srtt %.1f ms, queuing delay %.1f ms, %d retransmissions, %d bytes in flight",
+                window / 1024, srtt / 1e6, queuingDelay / 1e3, retransmissions, inflightBytes);
+    }
+}
+
+//Swarm membership for announce and scrape requests: one text line in, a few lines back, one request per connection.
+//A peer hosts it in-process when TrackerPeer names it; "java peerProcess tracker" runs it on its own from Common.cfg.
+class Tracker implements Runnable {
+
+    static final String STARTED = "started";
+    static final String COMPLETED = "completed";
+    static final String UPDATE = "update";
+    static final String STOPPED = "stopped";
+
+    private static final class Entry {
+        final int peerId;
+        final String hostName;
+        final int port;
+        volatile boolean complete;
+        volatile long lastSeen;
+
+        Entry(int peerId, String hostName, int port) {
+            this.peerId = peerId;
+            this.hostName = hostName;
+            this.port = port;
+        }
+    }
+
+    private final ServerSocket server;
+    private final int intervalSeconds;
+    private final int numWant;
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+    //Every peer ever reported complete, including those that have since left.
+    private final Set<Integer> finished = ConcurrentHashMap.newKeySet();
+
+    public Tracker(int port, int intervalSeconds, int numWant) throws IOException {
+        this.server = new ServerSocket(port);
+        this.intervalSeconds = intervalSeconds;
+        this.numWant = numWant;
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try (Socket socket = server.accept()) {
+                socket.setSoTimeout(2000);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                String line = reader.readLine();
+                if (line != null) {
+                    writer.write(handle(line.trim().split("\\s+")));
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private String handle(String[] request) {
+        expire();
+        try {
+            switch (request[0]) {
+                case "announce":
+                    return announce(request);
+                case "scrape":
+                    return scrape() + "\n";
+                default:
+                    return "error unknown request " + request[0] + "\n";
+            }
+        } catch (RuntimeException e) {
+            return "error malformed request\n";
+        }
+    }
+
+    //announce <peerId> <host> <port> <pieces left> <event>; answered with the scrape line and a random subset of other peers.
+    private String announce(String[] request) {
+        int peerId = Integer.parseInt(request[1]);
+        if (STOPPED.equals(request[5])) {
+            entries.remove(peerId);
+            return scrape() + "\n";
+        }
+        Entry entry = entries.computeIfAbsent(peerId, id -> new Entry(id, request[2], Integer.parseInt(request[3])));
+        entry.complete = Integer.parseInt(request[4]) == 0;
+        entry.lastSeen = System.nanoTime();
+        if (entry.complete) finished.add(peerId);
+        ArrayList<Entry> others = new ArrayList<>(entries.values());
+        others.remove(entry);
+        Collections.shuffle(others, ThreadLocalRandom.current());
+        StringBuilder response = new StringBuilder(scrape()).append('\n');
+        for (int i = 0; i < Math.min(numWant, others.size()); i++) {
+            Entry other = others.get(i);
+            response.append(other.peerId).append(' ').append(other.hostName).append(' ').append(other.port)
+                    .append(' ').append(other.complete ? 1 : 0).append('\n');
+        }
+        return response.toString();
+    }
+
+    private String scrape() {
+        int complete = 0;
+        int incomplete = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.complete) complete++;
+            else incomplete++;
+        }
+        return "interval " + intervalSeconds + " complete " + complete + " incomplete " + incomplete + " finished " + finished.size();
+    }
+
+    //Peers that miss three announces in a row are taken to have left without saying so.
+    private void expire() {
+        long cutoff = System.nanoTime() - 3L * intervalSeconds * 1_000_000_000L;
+        entries.values().removeIf(entry -> entry.lastSeen - cutoff < 0);
+    }
+
+    //The hosting peer keeps the tracker up until the others have left, so they still hear that the swarm finished.
+    public void awaitDeparture(int hostPeerId) {
+        long deadline = System.nanoTime() + 3L * intervalSeconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            expire();
+            if (entries.keySet().stream().allMatch(peerId -> peerId == hostPeerId)) return;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
+
+//Flight Recorder events for the wire, piece scheduling, choking and the disk. Nothing is recorded unless a recording is
+//running, e.g. java -XX:StartFlightRecording=filename=peer.jfr peerProcess 1001, and each emitter checks shouldCommit()
+//before filling in fields, so a node without a recording only pays for an allocation the JIT elides.
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    @Name("bittorrent.MessageReceived")
+    @Label("Message Received")
+    @Category({"BitTorrent", "Wire"})
+    @Description("Reading one frame body after its length prefix")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class MessageReceived extends Event {
+        @Label("Peer")
+        int peer;
+        @Label("Type")
+        String type;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        void finish(int peer, String type, int bytes) {
+            end();
+            if (shouldCommit()) {
+                this.peer = peer;
+                this.type = type;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("bittorrent.MessageSent")
+    @Label("Message Sent")
+    @Category({"BitTorrent", "Wire"})
+    @Description("Writing and flushing frames to a neighbour, the first frame's type standing for the batch")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class MessageSent extends Event {
+        @Label("Peer")
+        int peer;
+        @Label("Type")
+        String type;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        void finish(int peer, String type, int bytes) {
+            end();
+            if (shouldCommit()) {
+                this.peer = peer;
+                this.type = type;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("bittorrent.PieceRequested")
+    @Label("Piece Requested")
+    @Category({"BitTorrent", "Pieces"})
+    @StackTrace(false)
+    static class PieceRequested extends Event {
+        @Label("Peer")
+        int peer;
+        @Label("Piece")
+        int piece;
+        @Label("In Flight")
+        @Description("Requests outstanding on the connection, this one included")
+        int inFlight;
+    }
+
+    @Name("bittorrent.PieceCompleted")
+    @Label("Piece Completed")
+    @Category({"BitTorrent", "Pieces"})
+    @StackTrace(false)
+    static class PieceCompleted extends Event {
+        @Label("Source")
+        @Description("Neighbour that sent the piece, or -1 for the web seed")
+        int source;
+        @Label("Piece")
+        int piece;
+        @Label("Size")
+        @DataAmount
+        int bytes;
+        @Label("Latency")
+        @Description("From the request to the last byte, or -1 for a piece nobody here asked that neighbour for")
+        @Timespan
+        long latency;
+        @Label("Duplicate")
+        boolean duplicate;
+    }
+
+    @Name("bittorrent.ChokeDecision")
+    @Label("Choke Decision")
+    @Category({"BitTorrent", "Choking"})
+    @StackTrace(false)
+    static class ChokeDecision extends Event {
+        @Label("Peer")
+        int peer;
+        @Label("Choked")
+        boolean choked;
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("bittorrent.ChokeRound")
+    @Label("Choke Round")
+    @Category({"BitTorrent", "Choking"})
+    @Description("One pass of the preferred-neighbour selection")
+    @StackTrace(false)
+    static class ChokeRound extends Event {
+        @Label("Seeding")
+        boolean seeding;
+        @Label("Candidates")
+        int candidates;
+        @Label("Preferred")
+        int preferred;
+        @Label("Changes")
+        @Description("Neighbours choked or unchoked by this round")
+        int changes;
+    }
+
+    @Name("bittorrent.DiskWrite")
+    @Label("Disk Write")
+    @Category({"BitTorrent", "Disk"})
+    @Description("One coalesced run of adjacent pieces written by the disk writer")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class DiskWrite extends Event {
+        @Label("First Piece")
+        int firstPiece;
+        @Label("Pieces")
+        int pieces;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    static void pieceRequested(int peer, int piece, int inFlight) {
+        PieceRequested event = new PieceRequested();
+        if (event.shouldCommit()) {
+            event.peer = peer;
+            event.piece = piece;
+            event.inFlight = inFlight;
+            event.commit();
+        }
+    }
+
+    static void pieceCompleted(int source, int piece, int bytes, long latency, boolean duplicate) {
+        PieceCompleted event = new PieceCompleted();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.piece = piece;
+            event.bytes = bytes;
+            event.latency = latency;
+            event.duplicate = duplicate;
+            event.commit();
+        }
+    }
+
+    static void chokeDecision(int peer, boolean choked, String reason) {
+        ChokeDecision event = new ChokeDecision();
+        if (event.shouldCommit()) {
+            event.peer = peer;
+            event.choked = choked;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+}
+
+public class peerProcess {
+    static Configuration configuration;
+    static int currentPeerId;
+    static ConcurrentIntMap<Peer> peerMap;
+    private static ConcurrentIntMap<PeerSocket> socketMap;
+    static Peer currentPeer;
+    static MessageTypes messageTypes;
+    static PieceStore pieceStore;
+    static DiskWriter diskWriter;
+    static PieceCache pieceCache;
+    static BufferArena bufferArena;
+    static MemoryGovernor memoryGovernor;
+    static UdpTransport udpTransport;
+    static TrackerClient trackerClient;
+    static PeerExchange peerExchange;
+    static WebSeed webSeed;
+    static TraceRecorder traceRecorder;
+    static PieceCompressor pieceCompressor;
+    static ContentStore contentStore;
+    static ErasureRepair erasure;
+    //SHA-256 of each piece of the file, as far as known; filled by hashing held pieces or from neighbours' PIECE_HASHES.
+    static AtomicReferenceArray<byte[]> pieceHashes;
+    static final AtomicInteger piecesHashed = new AtomicInteger();
+    //Pieces claimed for filling from the content store and not yet done; endgame waits for them instead of duplicating them.
+    static final AtomicInteger storeFillsPending = new AtomicInteger();
+    private static ExecutorService contentWorker;
+    //Set while a trace is replayed; the dispatch loops then run until their recorded input ends.
+    static volatile boolean replaying = false;
+    //Number of entries in PeerInfo.cfg; with a tracker the swarm is finished once at least this many peers have completed.
+    static int configuredPeers;
+    //Pieces with a request in flight on any connection, so pipelines do not fetch the same piece twice.
+    static AtomicBitSet requestedPieces;
+    static TimerWheel requestTimer;
+    //Expiries run here rather than on the timer thread: handing pieces to other links writes to their sockets.
+    private static ExecutorService requestExpiry;
+    //Serves each connection's queued requests, so its reader can still take a CANCEL for the ones not yet sent.
+    private static ExecutorService uploadWorkers;
+    static StreamingPicker streamingPicker;
+    static PieceStream pieceStream;
+    private static Thread streamConsumer;
+    static SuperSeeder superSeeder;
+    static final AtomicInteger peersCompleted = new AtomicInteger();
+    static File currentNodeDir;
+    private static String theFileName;
+    static MyLogger logger;
+
+    private static class ParentThread extends Thread {
+        private PeerSocket peerSocket;
+
+        public ParentThread(PeerSocket peerSocket) {
+            this.peerSocket = peerSocket;
+        }
+
+        public void updatePeerAvailability(AtomicBitSet bitfield) {
+            Peer peer = peerMap.get(this.peerSocket.getPeerId());
+            if (streamingPicker != null) {
+                streamingPicker.onBitfield(peer.getBitField(), bitfield);
+            }
+            peer.setBitfield(bitfield);
+
+            if (bitfield.isFull()) {
+                if (peer.markComplete()) {
+                    peersCompleted.incrementAndGet();
+                }
+            }else {
+                peer.setHasFile(0);
+            }
+            if (superSeeder != null) {
+                superSeeder.onBitfield(peer.getPeerId(), bitfield);
+            }
+
+            boolean missingPieces = Utils.checkMissingPieces(currentPeer.getBitField(), peer.getBitField());
+            this.peerSocket.updateInterest(missingPieces);
+        }
+
+        public void printDownloadProgress() {
+            double downloadedPercentage = ((currentPeer.getNumberOfPieces() * 100.0) / configuration.getTotalPieces());
+            System.out.println(currentPeer.getNumberOfPieces() + "/" + configuration.getTotalPieces() + " downloaded: " + downloadedPercentage +"% ");
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+
+                try {
+                    DataInputStream inputStream = peerSocket.getInputStream();
+                    System.out.println("Sending bit field msg ... ");
+                    if (superSeeder != null && superSeeder.isActive()) {
+                        superSeeder.onConnect(peerSocket);
+                    } else {
+                        peerSocket.sendAvailabilityMessage();
+                    }
+                    if (contentStore != null) {
+                        peerSocket.sendPieceHashes();
+                    }
+                    while (!isSwarmComplete()) {
+                        int size = inputStream.readInt();
+                        if (size < 1) {
+                            throw new IOException("Invalid frame length " + size + " from " + peerSocket.getPeerId());
+                        }
+                        //Frame lengths come from the wire, so nothing is allocated for one larger than any valid message.
+                        if (size > configuration.getMaxFrameSize()) {
+                            memoryGovernor.rejectFrame();
+                            logger.logError("Peer " + currentPeer.getPeerId() + " skipped an oversized frame of " + size + " bytes from " + peerSocket.getPeerId());
+                            inputStream.skipNBytes(size);
+                            continue;
+                        }
+
+                        double startTime = (System.nanoTime() / 100000000.0);
+                        FlightEvents.MessageReceived received = new FlightEvents.MessageReceived();
+                        received.begin();
+                        char messageType = (char) inputStream.readByte();
+                        //Piece payloads go straight into an arena slab; only small control frames touch the heap.
+                        byte[] formattedMessage = null;
+                        BufferArena.Slab payload = null;
+                        if ((messageType == messageTypes.getPieceIndex() || messageType == messageTypes.getDeflatedPieceIndex())
+                                && size - 1 <= bufferArena.getSlabSize()) {
+                            if (!peerSocket.hasOutstandingRequests()) {
+                                memoryGovernor.awaitCapacity(size - 1);
+                            }
+                            payload = bufferArena.acquire(size - 1);
+                            peerSocket.readFully(payload.buffer());
+                            payload.buffer().flip();
+                        } else {
+                            formattedMessage = new byte[size - 1];
+                            inputStream.readFully(formattedMessage);
+                        }
+                        double endTime = (System.nanoTime() / 100000000.0);
+                        received.finish(peerSocket.getPeerId(), messageTypes.getName(messageType), size - 1);
+                        if (traceRecorder != null) {
+                            traceRecorder.append(peerSocket.getPeerId(), TraceRecorder.RECEIVED, messageType,
+                                    payload != null ? payload.buffer() : ByteBuffer.wrap(formattedMessage));
+                        }
+                        //From here on a deflated piece is handled exactly like a PIECE; one that fails to inflate is malformed.
+                        if (messageType == messageTypes.getDeflatedPieceIndex()) {
+                            payload = inflatePiece(payload);
+                            messageType = messageTypes.getPieceIndex();
+                        }
+
+                        if (messageType == messageTypes.getBitFieldIndex()) {
+                            AtomicBitSet bitfield;
+                            if (peerSocket.supports(Capabilities.COMPACT_BITFIELD)) {
+                                bitfield = Utils.decodeCompactBitfield(formattedMessage, currentPeer.getPiecesLength());
+                            } else {
+                                bitfield = new AtomicBitSet(currentPeer.getPiecesLength());
+                                int count = 0;
+                                for (int i = 0; i < formattedMessage.length && count < bitfield.size(); i += 4) { //
+                                    byte[] temp = Utils.returnArrayCopy(formattedMessage, i, i + 4);
+                                    if (ByteBuffer.wrap(temp).getInt() == 1) bitfield.set(count);
+                                    count++;
+                                }
+                            }
+
+                            updatePeerAvailability(bitfield);
+                        }
+
+                        else if (messageType == messageTypes.getHaveAllIndex()) {
+                            updatePeerAvailability(AtomicBitSet.full(currentPeer.getPiecesLength()));
+                        }
+
+                        else if (messageType == messageTypes.getHaveNoneIndex()) {
+                            updatePeerAvailability(new AtomicBitSet(currentPeer.getPiecesLength()));
+                        }
+
+                        else if (messageType == messageTypes.getInterestedIndex()) {
+                            peerSocket.setInterested(true);
+                            logger.logInfo("Peer "+ currentPeer.getPeerId() +" received the ‘interested’ formattedMessage from "+ peerSocket.peerId);
+                        }
+
+                        else if (messageType == messageTypes.getNotInterestedIndex()) {
+                            peerSocket.setInterested(false);
+                            logger.logInfo("Peer "+ currentPeer.getPeerId() +" received the ‘not interested’ formattedMessage from "+ peerSocket.peerId);
+                            if (peerSocket.chokeConnection()) {
+                                FlightEvents.chokeDecision(peerSocket.getPeerId(), true, "not interested");
+                                peerSocket.sendChokeMessage();
+                            }
+                        }
+
+                        else if (messageType == messageTypes.getUnchokeIndex()) {
+                            peerSocket.setChokedByPeer(false);
+                            logger.logInfo("Peer " + currentPeer.getPeerId()+ " is unchoked by "+ peerSocket.peerId); //Is this right?
+                            System.out.println(peerSocket.getPeerId() + " is unchoked");
+                            if (!peerSocket.fillPipeline(-1)) {
+                                System.out.println("No more pieces required.");
+                            }
+
+                        }
+                        else if (messageType == messageTypes.getRequestIndex()) {
+                            ByteBuffer requested = ByteBuffer.wrap(formattedMessage);
+                            do {
+                                int requestedIndex = requested.getInt();
+                                boolean repair = erasure != null && erasure.isRepairIndex(requestedIndex) && currentPeer.getBitField().isFull();
+                                //With choke state tracked per direction, requests racing our CHOKE are refused rather than served.
+                                if ((requestedIndex < 0 || requestedIndex >= currentPeer.getPiecesLength() || !currentPeer.hasPiece(requestedIndex)) && !repair
+                                        || peerSocket.getIsChoked()) {
+                                    peerSocket.sendRejectMessage(requestedIndex);
+                                } else {
+                                    peerSocket.queueUpload(requestedIndex);
+                                }
+                            } while (peerSocket.supports(Capabilities.BLOCK_REQUESTS) && requested.remaining() >= 4);
+                        }
+                        else if (messageType == messageTypes.getCancelIndex()) {
+                            ByteBuffer cancelled = ByteBuffer.wrap(formattedMessage);
+                            while (cancelled.remaining() >= 4) {
+                                int cancelledIndex = cancelled.getInt();
+                                if (peerSocket.cancelUpload(cancelledIndex)) {
+                                    logger.logInfo("Peer " + currentPeer.getPeerId() + " dropped the cancelled request for piece " + cancelledIndex + " from " + peerSocket.getPeerId());
+                                }
+                            }
+                        }
+                        else if (messageType == messageTypes.getPexIndex()) {
+                            if (peerExchange != null) {
+                                peerExchange.onPexMessage(peerSocket, ByteBuffer.wrap(formattedMessage));
+                            }
+                        }
+                        else if (messageType == messageTypes.getPieceHashesIndex()) {
+                            if (contentStore != null) {
+                                onPieceHashes(peerSocket, ByteBuffer.wrap(formattedMessage));
+                            }
+                        }
+                        else if (messageType == messageTypes.getRejectIndex()) {
+                            int rejectedIndex = ByteBuffer.wrap(formattedMessage).getInt();
+                            logger.logInfo("Peer " + currentPeer.getPeerId() + " received a reject from " + peerSocket.getPeerId() + " for the piece " + rejectedIndex);
+                            if (peerSocket.cancelRequest(rejectedIndex)) {
+                                peerSocket.fillPipeline(rejectedIndex);
+                            }
+                        }
+                        else if (messageType == messageTypes.getPieceIndex()) {
+                            Peer neighborPeer = peerMap.get(peerSocket.getPeerId());
+                            int receivedPieceIndex = payload != null && payload.buffer().remaining() >= 4 ? payload.buffer().getInt() : -1;
+                            if (erasure != null && erasure.isRepairIndex(receivedPieceIndex) && payload.buffer().remaining() == configuration.getPieceSize()) {
+                                peerSocket.completeRequest(receivedPieceIndex, payload.buffer().remaining(), System.nanoTime());
+                                erasure.onRepairPiece(receivedPieceIndex, payload.buffer());
+                                payload.release();
+                                peerSocket.fillPipeline(-1);
+                                continue;
+                            }
+                            if (receivedPieceIndex < 0 || receivedPieceIndex >= currentPeer.getPiecesLength()
+                                    || payload.buffer().remaining() != configuration.getPieceLength(receivedPieceIndex)) {
+                                logger.logError("Peer " + currentPeer.getPeerId() + " dropped a malformed piece from " + peerSocket.getPeerId());
+                                if (payload != null) payload.release();
+                                continue;
+                            }
+                            int pieceBytes = payload.buffer().remaining();
+                            long latency = peerSocket.completeRequest(receivedPieceIndex, pieceBytes, System.nanoTime());
+                            boolean newPiece = storePiece(receivedPieceIndex, payload);
+                            payload = null;
+                            FlightEvents.pieceCompleted(peerSocket.getPeerId(), receivedPieceIndex, pieceBytes, latency, !newPiece);
+                            peerSocket.fillPipeline(-1);
+                            double downSpeed = ((double) (size + 4) / (endTime - startTime));
+                            if (neighborPeer.getHasFile() == 1) {
+                                peerSocket.setDownloadSpeed(-1);
+                            } else {
+                                peerSocket.setDownloadSpeed(downSpeed);
+                            }
+                            if (newPiece) {
+                                logger.logInfo("Peer "+ currentPeer.getPeerId() + "has downloaded the piece "+ receivedPieceIndex + " from "+ peerSocket.getPeerId()+".");
+
+                                printDownloadProgress();
+                                announcePiece(receivedPieceIndex, peerSocket);
+                            }
+
+                        } else if (messageType == messageTypes.getHaveIndex()) {
+                            Peer peer = peerMap.get(peerSocket.getPeerId());
+                            //A flushed HAVE can overtake the neighbour's opening bitfield; it starts from an empty one.
+                            if (peer.getBitField() == null) {
+                                peer.setBitfield(new AtomicBitSet(currentPeer.getPiecesLength()));
+                            }
+                            ByteBuffer announced = ByteBuffer.wrap(formattedMessage);
+                            do {
+                                int havePieceIndex = announced.getInt();
+                                if (havePieceIndex < 0 || havePieceIndex >= currentPeer.getPiecesLength()) {
+                                    continue;
+                                }
+                                if (peer.markBitOn(havePieceIndex) && streamingPicker != null) {
+                                    streamingPicker.onHave(havePieceIndex);
+                                }
+                                if (superSeeder != null) {
+                                    superSeeder.onHave(peer.getPeerId(), havePieceIndex);
+                                }
+                                logger.logInfo("Peer " + currentPeer.getPeerId()+" received the ‘have’ formattedMessage from "+ peerSocket.getPeerId()+" for the piece " + havePieceIndex);
+                            } while (peerSocket.supports(Capabilities.HAVE_BATCH) && announced.remaining() >= 4);
+
+                            //Interest is recomputed once per batch rather than once per announced piece.
+                            if (peer.getBitField().isFull() && peer.markComplete()) {
+                                peersCompleted.incrementAndGet();
                             }
-                            else {
-                                this.peerSocket.sendNotInterestedMessage() ;
+                            if (Utils.checkMissingPieces(currentPeer.getBitField(), peer.getBitField())) {
+                                peerSocket.updateInterest(true);
+                                //An unchoked link with room in its pipeline picks up again as soon as the neighbour has something new.
+                                peerSocket.fillPipeline(-1);
+                            } else {
+                                peerSocket.updateInterest(false);
                             }
 
-                        }
+                        }
+                        else if (messageType == messageTypes.getChokeIndex()) {
+                            logger.logInfo("Peer "+ currentPeer.getPeerId() +" is choked by "+ peerSocket.peerId);
+                            peerSocket.setChokedByPeer(true);
+                            peerSocket.abandonRequests();
+                            peerSocket.reassignRequests();
+                        }
+                    }
+
+                    System.out.println("Finished executing");
+                    Thread.sleep(6000);
+                }
+                catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+                finally {
+                    peerSocket.abandonRequests();
+                    peerSocket.abandonUploads();
+                    peerSocket.reassignRequests();
+                    //With a tracker the slot is freed so the peer, or another one, can be dialled again.
+                    if (trackerClient != null && socketMap.remove(peerSocket.getPeerId(), peerSocket)) {
+                        try {
+                            peerSocket.getSocket().close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class PeerSocket {
+
+        //Choke and interest flags for both directions live in one word so the reader and choker threads never lose an update.
+        private static final int AM_CHOKING = 1;
+        private static final int PEER_CHOKING = 1 << 1;
+        private static final int PEER_INTERESTED = 1 << 2;
+        private static final int AM_INTERESTED = 1 << 3;
+        private static final int INTEREST_SENT = 1 << 4;
+        private static final int OPTIMISTIC = 1 << 5;
+
+        private volatile double downloadSpeed = 0;
+        private volatile double uploadSpeed = 0;
+        private final AtomicLong uploadedBytes = new AtomicLong();
+        private final AtomicInteger state = new AtomicInteger(AM_CHOKING | PEER_CHOKING);
+        private final RequestPipeline pipeline = new RequestPipeline(requestTimer, configuration.getPipelineMinDepth(),
+                configuration.getPipelineMaxDepth(), configuration.getPieceSize());
+        private final IntList requestBatch = new IntList();
+        //The reader owns the pipeline, but the request timer and other readers reach it too when requests expire or move.
+        private final ReentrantLock requestLock = new ReentrantLock();
+        private int consecutiveStalls = 0;
+        private int stalls = 0;
+        private volatile boolean snubbed = false;
+        //Neighbours last announced to this peer over PEX, with the flags they were sent with; only the PEX thread touches it.
+        private final IntIntMap pexSent = new IntIntMap(-1);
+        private volatile long lastPexReceived = 0;
+        private final Socket socket;
+        private final int peerId;
+        private final AtomicBitSet pendingHaves = new AtomicBitSet(configuration.getTotalPieces());
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+        private final ReadableByteChannel inputChannel;
+        private final WritableByteChannel outputChannel;
+        private final long capabilities;
+        private final ParentThread reader;
+        private final AtomicBoolean hashesSent = new AtomicBoolean();
+        //Requested pieces not yet sent, in the order they were asked for; guarded by itself.
+        private final IntList uploadQueue = new IntList();
+        private boolean uploading = false;
+
+        public PeerSocket(Socket socket, int peerId, DataInputStream inputStream, DataOutputStream outputStream, long capabilities) {
+            this.socket = socket;
+            this.peerId = peerId;
+            this.inputStream = inputStream;
+            this.outputStream = outputStream;
+            this.capabilities = capabilities;
+            this.inputChannel = Channels.newChannel(inputStream);
+            this.outputChannel = Channels.newChannel(outputStream);
+            if (traceRecorder != null) {
+                traceRecorder.connected(peerId, capabilities);
+            }
+            this.reader = new ParentThread(this);
+            reader.start();
+        }
+
+        public void awaitReader() throws InterruptedException {
+            reader.join();
+        }
+
+        public int getPeerId() {
+            return this.peerId;
+        }
+
+        public double getDownloadSpeed() {
+            return downloadSpeed;
+        }
+
+        public void setDownloadSpeed(double downloadSpeed) {
+            this.downloadSpeed = downloadSpeed;
+        }
+
+        public double getUploadSpeed() {
+            return uploadSpeed;
+        }
+
+        //Called by the choker once a round; half of the previous estimate carries over so one idle round does not zero it.
+        public void sampleUploadSpeed(double seconds) {
+            if (seconds <= 0) return;
+            double sample = uploadedBytes.getAndSet(0) / seconds;
+            uploadSpeed = uploadSpeed * 0.5 + sample * 0.5;
+        }
+
+        private boolean hasFlag(int flag) {
+            return (state.get() & flag) != 0;
+        }
+
+        //Returns true when this call changed the flag, so only one thread acts on a transition.
+        private boolean setFlag(int flag, boolean on) {
+            while (true) {
+                int current = state.get();
+                int next = on ? current | flag : current & ~flag;
+                if (current == next) return false;
+                if (state.compareAndSet(current, next)) return true;
+            }
+        }
+
+        public boolean getIsChoked() {
+            return hasFlag(AM_CHOKING);
+        }
+
+        public boolean chokeConnection() {
+            return setFlag(AM_CHOKING, true);
+        }
+
+        public boolean unChoke() {
+            return setFlag(AM_CHOKING, false);
+        }
+
+        public boolean isChokedByPeer() {
+            return hasFlag(PEER_CHOKING);
+        }
+
+        public void setChokedByPeer(boolean choked) {
+            setFlag(PEER_CHOKING, choked);
+        }
+
+        public void optimisticallyUnchoke() {
+            setFlag(OPTIMISTIC, true);
+        }
+
+        public void optimisticallyChoke() {
+            setFlag(OPTIMISTIC, false);
+        }
+
+        public boolean isOptimisticallyUnchoked() {
+            return hasFlag(OPTIMISTIC);
+        }
+
+        public boolean hasOutstandingRequests() {
+            requestLock.lock();
+            try {
+                return !pipeline.isEmpty();
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        public boolean isSnubbed() {
+            return snubbed;
+        }
+
+        //Each request gives back its reservation and its claim on the piece once it is answered or dropped.
+        private void releaseRequest(int pieceIndex) {
+            if (erasure != null && erasure.isRepairIndex(pieceIndex)) {
+                erasure.releaseRepair(pieceIndex);
+            } else {
+                requestedPieces.clear(pieceIndex);
+            }
+            memoryGovernor.release(requestLength(pieceIndex));
+        }
+
+        //Returns how long the piece was in flight, or -1 when it was not outstanding on this connection.
+        public long completeRequest(int pieceIndex, int bytes, long now) {
+            requestLock.lock();
+            try {
+                if (!pipeline.onPiece(pieceIndex, bytes, now)) return -1;
+                releaseRequest(pieceIndex);
+                consecutiveStalls = 0;
+                if (snubbed) {
+                    snubbed = false;
+                    logger.logInfo("Peer " + currentPeerId + " no longer snubs " + peerId);
+                }
+                return pipeline.getLastRoundTrip();
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        public boolean cancelRequest(int pieceIndex) {
+            requestLock.lock();
+            try {
+                if (!pipeline.remove(pieceIndex)) return false;
+                releaseRequest(pieceIndex);
+                return true;
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        //A piece that came in elsewhere is cancelled here while still outstanding, so the neighbour need not upload it.
+        //A busy reader is not waited for; its copy then simply arrives as a duplicate.
+        public boolean cancelDuplicate(int pieceIndex) {
+            if (!supports(Capabilities.CANCEL) || !requestLock.tryLock()) return false;
+            try {
+                if (!pipeline.remove(pieceIndex)) return false;
+                releaseRequest(pieceIndex);
+            } finally {
+                requestLock.unlock();
+            }
+            sendCancelMessage(pieceIndex);
+            return true;
+        }
+
+        //Requests are served by an upload worker, one at a time per connection and in the order they came in.
+        public void queueUpload(int pieceIndex) {
+            synchronized (uploadQueue) {
+                uploadQueue.add(pieceIndex);
+                if (uploading) return;
+                uploading = true;
+            }
+            uploadWorkers.execute(this::serveUploads);
+        }
+
+        //Returns true when the piece was still waiting to be sent and now will not be.
+        public boolean cancelUpload(int pieceIndex) {
+            synchronized (uploadQueue) {
+                int slot = uploadQueue.indexOf(pieceIndex);
+                if (slot < 0) return false;
+                uploadQueue.remove(slot);
+                return true;
+            }
+        }
+
+        public void abandonUploads() {
+            synchronized (uploadQueue) {
+                uploadQueue.clear();
+            }
+        }
+
+        private void serveUploads() {
+            while (true) {
+                int pieceIndex;
+                synchronized (uploadQueue) {
+                    if (uploadQueue.isEmpty()) {
+                        uploading = false;
+                        return;
+                    }
+                    pieceIndex = uploadQueue.remove(0);
+                }
+                //A CHOKE sent since the request arrived refuses what is still queued.
+                if (getIsChoked()) {
+                    sendRejectMessage(pieceIndex);
+                    continue;
+                }
+                sendPieceMessage(pieceIndex);
+                if (superSeeder != null && pieceIndex < currentPeer.getPiecesLength()) {
+                    superSeeder.onPieceServed(peerId, pieceIndex);
+                }
+            }
+        }
+
+        //A choke or a dead connection drops every request in flight and returns the pieces to the picker.
+        public void abandonRequests() {
+            requestLock.lock();
+            try {
+                for (int i = 0; i < pipeline.size(); i++) {
+                    releaseRequest(pipeline.get(i));
+                }
+                pipeline.clear();
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        //Runs on the request timer; a neighbour that keeps missing deadlines is snubbed.
+        private void expireRequest(int pieceIndex) {
+            requestLock.lock();
+            try {
+                if (!pipeline.remove(pieceIndex)) return;
+                releaseRequest(pieceIndex);
+                stalls++;
+                if (++consecutiveStalls >= configuration.getSnubThreshold() && !snubbed) {
+                    snubbed = true;
+                    logger.logInfo("Peer " + currentPeerId + " snubs " + peerId + " after " + consecutiveStalls + " stalled requests");
+                }
+            } finally {
+                requestLock.unlock();
+            }
+            logger.logInfo("Peer " + currentPeerId + " timed out the request for piece " + pieceIndex + " to " + peerId);
+            reassignRequests();
+        }
+
+        //Pieces handed back by a choke, timeout or disconnect go straight to other links that can take them now.
+        public void reassignRequests() {
+            requestFromOthers(this);
+        }
+
+        //A deeper range takes effect at once; a shallower one as requests in flight drain.
+        public void setPipelineDepth(int minDepth, int maxDepth) {
+            requestLock.lock();
+            try {
+                pipeline.setDepthLimits(minDepth, maxDepth);
+            } finally {
+                requestLock.unlock();
+            }
+            fillPipeline(-1);
+        }
+
+        public boolean fillPipeline(int excludedIndex) {
+            requestLock.lock();
+            try {
+                return fillPipelineLocked(excludedIndex, true);
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        //Tops the connection up to the depth its pipeline currently allows; returns false when nothing is wanted from the neighbour.
+        //A snubbed neighbour is held to a single request so it cannot sit on many pieces.
+        private boolean fillPipelineLocked(int excludedIndex, boolean mayBlock) {
+            if (isChokedByPeer()) return true;
+            Peer neighbor = peerMap.get(peerId);
+            AtomicBitSet neighborBitfield = neighbor == null ? null : neighbor.getBitField();
+            if (neighborBitfield == null) return true;
+            int wanted = snubbed ? Math.max(0, 1 - pipeline.size()) : pipeline.getWanted();
+            requestBatch.clear();
+            long now = System.nanoTime();
+            while (requestBatch.size() < wanted) {
+                boolean idle = pipeline.isEmpty() && requestBatch.isEmpty();
+                int pieceIndex = streamingPicker != null
+                        ? streamingPicker.pick(currentPeer.getBitField(), neighborBitfield, requestedPieces, pipeline, excludedIndex, now)
+                        : Utils.getRandomFilePiece(currentPeer.getBitField(), neighborBitfield, requestedPieces, excludedIndex);
+                if (pieceIndex == -1 && erasure != null && supports(Capabilities.ERASURE) && neighborBitfield.isFull()) {
+                    pieceIndex = erasure.pickRepair();
+                }
+                //Endgame: an idle link may duplicate a piece already in flight elsewhere rather than sit empty.
+                if (pieceIndex == -1 && idle && storeFillsPending.get() == 0) {
+                    pieceIndex = Utils.getRandomFilePiece(currentPeer.getBitField(), neighborBitfield, excludedIndex);
+                }
+                if (pieceIndex == -1) break;
+                int pieceLength = requestLength(pieceIndex);
+                try {
+                    //Only an idle reader blocks on the budget; one with pieces in flight would be waiting on its own stream.
+                    if (idle && mayBlock) {
+                        memoryGovernor.reserve(pieceLength);
+                    } else if (!memoryGovernor.tryReserve(pieceLength)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                boolean repair = pieceIndex >= currentPeer.getPiecesLength();
+                if (!repair) {
+                    requestedPieces.set(pieceIndex);
+                }
+                final int requestedIndex = pieceIndex;
+                TimerWheel.Timeout deadline = requestTimer.schedule(
+                        pipeline.getRequestTimeout(configuration.getRequestTimeout() * 1_000_000L), () -> requestExpiry.execute(() -> expireRequest(requestedIndex)));
+                pipeline.onRequest(pieceIndex, now, deadline);
+                FlightEvents.pieceRequested(peerId, pieceIndex, pipeline.size());
+                if (streamingPicker != null && !repair) {
+                    streamingPicker.onRequested(pieceIndex, now);
+                }
+                requestBatch.add(pieceIndex);
+            }
+            if (requestBatch.isEmpty()) {
+                return !pipeline.isEmpty();
+            }
+            sendRequestMessage(requestBatch);
+            return true;
+        }
+
+        public boolean isInterested() {
+            return hasFlag(PEER_INTERESTED);
+        }
+
+        public void setInterested(boolean interested) {
+            setFlag(PEER_INTERESTED, interested);
+        }
+
+        public Socket getSocket() {
+            return this.socket;
+        }
+
+        public DataInputStream getInputStream() {
+            return this.inputStream;
+        }
+
+        public boolean supports(long capability) {
+            return (this.capabilities & capability) != 0;
+        }
+
+        //Reader and choker threads share the stream, so every frame goes out whole.
+        public synchronized void writeMessage(byte[] packet) throws IOException {
+            FlightEvents.MessageSent sent = new FlightEvents.MessageSent();
+            sent.begin();
+            if (traceRecorder != null) {
+                traceRecorder.appendSent(peerId, ByteBuffer.wrap(packet));
+            }
+            outputStream.write(packet);
+            outputStream.flush();
+            sent.finish(peerId, messageTypes.getName(packet.length > 4 ? packet[4] : -1), packet.length);
+        }
+
+        public synchronized void writeMessage(ByteBuffer packet) throws IOException {
+            FlightEvents.MessageSent sent = new FlightEvents.MessageSent();
+            sent.begin();
+            int bytes = packet.remaining();
+            int type = bytes > 4 ? packet.get(packet.position() + 4) : -1;
+            if (traceRecorder != null) {
+                traceRecorder.appendSent(peerId, packet);
+            }
+            while (packet.hasRemaining()) {
+                outputChannel.write(packet);
+            }
+            outputStream.flush();
+            sent.finish(peerId, messageTypes.getName(type), bytes);
+        }
+
+        public void readFully(ByteBuffer destination) throws IOException {
+            while (destination.hasRemaining()) {
+                if (inputChannel.read(destination) < 0) throw new EOFException();
+            }
+        }
+
+        //The PIECE frame is laid out in an arena slab around the cached bytes instead of being assembled through buildPacket.
+        //Null when the piece is a repair that the memory budget has no room to encode.
+        public BufferArena.Slab getFilePieces(int pInd) throws IOException, InterruptedException {
+            int pieceLength = requestLength(pInd);
+            BufferArena.Slab slab = bufferArena.acquire(pieceLength + 9);
+            try {
+                ByteBuffer frame = slab.buffer();
+                frame.putInt(pieceLength + 5);
+                frame.put((byte) messageTypes.getPieceIndex());
+                frame.putInt(pInd);
+                if (pInd >= configuration.getTotalPieces()) {
+                    if (!erasure.readRepair(pInd, frame)) {
+                        slab.release();
+                        return null;
+                    }
+                } else {
+                    pieceCache.readPiece(pInd, peerId, frame);
+                }
+                frame.flip();
+            } catch (IOException e) {
+                slab.release();
+                throw e;
+            }
+            return slab;
+        }
+
+        private BufferArena.Slab getDeflatedPiece(int pInd, byte[] deflated) throws InterruptedException {
+            BufferArena.Slab slab = bufferArena.acquire(deflated.length + 9);
+            ByteBuffer frame = slab.buffer();
+            frame.putInt(deflated.length + 5);
+            frame.put((byte) messageTypes.getDeflatedPieceIndex());
+            frame.putInt(pInd);
+            frame.put(deflated);
+            frame.flip();
+            return slab;
+        }
+
+        public byte[] buildPacket(int length, char messageType, byte[] data) throws CustomException {
+
+            if (messageType == messageTypes.getInterestedIndex() || messageType == messageTypes.getNotInterestedIndex() || messageType == messageTypes.getUnchokeIndex() || messageType == messageTypes.getChokeIndex()
+                    || messageType == messageTypes.getHaveAllIndex() || messageType == messageTypes.getHaveNoneIndex()) {
+
+                int index = 0;
+                byte type = (byte) messageType;
+                byte[] returnPacket = new byte[length + 4];
+                byte[] header = ByteBuffer.allocate(4).putInt(length).array();
+                int checkLength = header.length;
+                int j = 0;
+                while (j<checkLength) {
+                    byte m = header[j];
+                    returnPacket[index] = m;
+                    index = index+1;
+                    j = j + 1;
+                }
+                returnPacket[index] = type;
+                return returnPacket;
+            }
+            else if (messageType == messageTypes.getBitFieldIndex() || messageType == messageTypes.getRequestIndex() || messageType == messageTypes.getPieceIndex() || messageType == messageTypes.getHaveIndex()
+                    || messageType == messageTypes.getRejectIndex() || messageType == messageTypes.getPexIndex()
+                    || messageType == messageTypes.getPieceHashesIndex() || messageType == messageTypes.getCancelIndex()) {
+
+                int index = 0;
+                byte msgType = (byte) messageType;
+                byte[] resultPacket = new byte[length + 4];
+                byte[] header = ByteBuffer.allocate(4).putInt(length).array();
+                int checkLength = header.length;
+                int checkLength1 = data.length;
+                int i = 0;
+                while(i<checkLength){
+                    byte m = header[i];
+                    resultPacket[index] = m;
+                    index = index+1;
+                    i = i + 1;
+                }
+                resultPacket[index++] = msgType;
+                int j = 0;
+                while(j<checkLength1){
+                    byte m = data[j];
+                    resultPacket[index] = m;
+                    index = index + 1;
+                    j = j + 1;
+                }
+
+                return resultPacket;
+            }
+            else {
+                throw new CustomException("Invalid message type " + messageType);
+            }
+        }
+
+        public void sendHaveMessage(int pieceIndex) {
+
+            try {
+                byte[] load = ByteBuffer.allocate(4).putInt(pieceIndex).array();
+                byte[] haveMessage = null;
+
+                try {
+                    haveMessage = buildPacket(5, messageTypes.getHaveIndex(), load);
+                } catch(CustomException e) {
+                    e.printStackTrace();
+                    System.exit(0);
+                }
+                writeMessage(haveMessage);
+
+            }  catch (IOException exception) {
+                System.out.println("Unable to send have.");
+            }
+        }
+
+        //With BLOCK_REQUESTS the whole batch travels in one frame; otherwise each piece gets its own.
+        public void sendRequestMessage(IntList indices) {
+            try {
+                int perFrame = supports(Capabilities.BLOCK_REQUESTS) ? indices.size() : 1;
+                for (int first = 0; first < indices.size(); first += perFrame) {
+                    int count = Math.min(perFrame, indices.size() - first);
+                    ByteBuffer load = ByteBuffer.allocate(4 * count);
+                    for (int i = first; i < first + count; i++) {
+                        load.putInt(indices.get(i));
+                    }
+                    byte[] requestMessage = null;
+                    try {
+                        requestMessage = buildPacket(4 * count + 1, messageTypes.getRequestIndex(), load.array());
+                    } catch(CustomException e) {
+                        e.printStackTrace();
+                        System.exit(0);
+                    }
+                    writeMessage(requestMessage);
+                }
+
+            }  catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void sendPieceMessage(int index) {
+
+            try {
+                int pieceLength = requestLength(index);
+                byte[] deflated = pieceCompressor != null && supports(Capabilities.COMPRESSION) && index < configuration.getTotalPieces()
+                        ? pieceCompressor.getDeflated(index, peerId, pieceLength) : null;
+                BufferArena.Slab frame = deflated != null ? getDeflatedPiece(index, deflated) : getFilePieces(index);
+                if (frame == null) {
+                    sendRejectMessage(index);
+                    return;
+                }
+                try {
+                    int wireBytes = frame.buffer().remaining() - 9;
+                    writeMessage(frame.buffer());
+                    uploadedBytes.addAndGet(pieceLength);
+                    if (pieceCompressor != null) {
+                        pieceCompressor.onPieceSent(pieceLength, wireBytes);
+                    }
+                } finally {
+                    frame.release();
+                }
+            }  catch (IOException | InterruptedException exception) {
+                exception.printStackTrace();
+            }
+        }
+
+        //HAVEs are held for HaveFlushInterval and skipped for pieces the neighbour is already known to hold.
+        public void queueHaveMessage(int pieceIndex) {
+            AtomicBitSet bitfield = peerMap.get(peerId).getBitField();
+            if (bitfield != null && bitfield.get(pieceIndex)) {
+                return;
+            }
+            pendingHaves.set(pieceIndex);
+            if (configuration.getHaveFlushInterval() == 0) {
+                flushHaveMessages();
+            }
+        }
+
+        public void flushHaveMessages() {
+            if (pendingHaves.isEmpty()) return;
+            AtomicBitSet bitfield = peerMap.get(peerId).getBitField();
+            long[] drained = new long[pendingHaves.wordCount()];
+            int pendingCount = 0;
+            for (int w = 0; w < drained.length; w++) {
+                drained[w] = pendingHaves.drainWord(w);
+                pendingCount += Long.bitCount(drained[w]);
+            }
+            ByteBuffer load = ByteBuffer.allocate(4 * pendingCount);
+            for (int w = 0; w < drained.length; w++) {
+                for (long word = drained[w]; word != 0; word &= word - 1) {
+                    int pieceIndex = (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (bitfield == null || !bitfield.get(pieceIndex)) load.putInt(pieceIndex);
+                }
+            }
+            if (load.position() == 0) return;
+            try {
+                byte[] haveMessages;
+                if (supports(Capabilities.HAVE_BATCH)) {
+                    haveMessages = buildPacket(load.position() + 1, messageTypes.getHaveIndex(), Arrays.copyOf(load.array(), load.position()));
+                } else {
+                    //Without batching the single-index frames still go out back to back with one flush.
+                    haveMessages = new byte[(load.position() / 4) * 9];
+                    ByteBuffer frames = ByteBuffer.wrap(haveMessages);
+                    for (int i = 0; i < load.position(); i += 4) {
+                        frames.put(buildPacket(5, messageTypes.getHaveIndex(), Arrays.copyOfRange(load.array(), i, i + 4)));
+                    }
+                }
+                writeMessage(haveMessages);
+            } catch (IOException | CustomException exception) {
+                System.out.println("Unable to send have.");
+            }
+        }
+
+        public void updateInterest(boolean interested) {
+            while (true) {
+                int current = state.get();
+                int next = (interested ? current | AM_INTERESTED : current & ~AM_INTERESTED) | INTEREST_SENT;
+                if (current == next) return;
+                if (state.compareAndSet(current, next)) break;
+            }
+            if (interested) sendInterestedMessage();
+            else sendNotInterestedMessage();
+        }
+
+        public void sendInterestedMessage() {
+            try {
+                byte[] interestedMessage;
+                interestedMessage = buildPacket(1, messageTypes.getInterestedIndex(), null);
+                writeMessage(interestedMessage);
+            } catch(CustomException | IOException e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+        }
+
+        public void sendBitFieldMsg() {
+            sendBitFieldMsg(currentPeer.getBitField());
+        }
+
+        public void sendBitFieldMsg(AtomicBitSet bitField) {
+            try{
+                int totalLength = bitField.size();
+                byte[] load;
+                if (supports(Capabilities.COMPACT_BITFIELD)) {
+                    load = Utils.encodeCompactBitfield(bitField);
+                } else {
+                    load = new byte[4 * totalLength];
+                    int index = 0;
+                    for (int j=0;j < totalLength;j++) {
+                        int ind = bitField.get(j) ? 1 : 0;
+                        byte[] numberByteArray = ByteBuffer.allocate(4).putInt(ind).array();
+                        int checkLength = numberByteArray.length;
+                        for (int k=0;k < checkLength;k++) {
+                            byte oneByte = numberByteArray[k];
+                            load[index] = oneByte;
+                            index = index + 1;
+                        }
+                    }
+                }
+
+                byte[] bitMessage = buildPacket(load.length + 1, messageTypes.getBitFieldIndex(), load);
+
+                writeMessage(bitMessage);
+            } catch(IOException | CustomException exception){
+                exception.printStackTrace();
+                System.exit(0);
+            }
+        }
+
+        //Sends what changed in this peer's neighbour list since the last PEX to this neighbour; nothing goes out when nothing did.
+        public void sendPexMessage() {
+            //The whole frame, dropped entries included, has to stay under the largest frame the neighbour accepts,
+            //which for a small file with small pieces leaves room for few entries or none.
+            long room = configuration.getMaxFrameSize() - 5;
+            int maxDropped = (int) Math.min(PeerExchange.MAX_ENTRIES, room / 4);
+            ByteBuffer added = ByteBuffer.allocate((int) Math.max(0, Math.min(room - 4L * maxDropped, PeerExchange.MAX_ENTRIES * 263L)));
+            int addedCount = 0;
+            for (PeerSocket other : socketMap.values()) {
+                Peer peer = peerMap.get(other.getPeerId());
+                if (peer == null || other == this) continue;
+                int flags = peer.getHasFile() == 1 ? PeerExchange.SEED : 0;
+                if (pexSent.get(peer.getPeerId()) == flags) continue;
+                byte[] host = peer.getHostName().getBytes(StandardCharsets.US_ASCII);
+                if (addedCount == PeerExchange.MAX_ENTRIES || host.length > 255 || added.remaining() < 8 + host.length) break;
+                added.putInt(peer.getPeerId()).putShort((short) peer.getPort()).put((byte) flags).put((byte) host.length).put(host);
+                pexSent.put(peer.getPeerId(), flags);
+                addedCount++;
+            }
+            IntList dropped = new IntList();
+            for (int slot = 0; slot < pexSent.capacity() && dropped.size() < maxDropped; slot++) {
+                if (pexSent.isUsed(slot) && !socketMap.containsKey(pexSent.keyAt(slot))) dropped.add(pexSent.keyAt(slot));
+            }
+            if (addedCount == 0 && dropped.isEmpty()) return;
+            ByteBuffer load = ByteBuffer.allocate(4 + added.position() + 4 * dropped.size());
+            load.putShort((short) addedCount).put(added.array(), 0, added.position()).putShort((short) dropped.size());
+            for (int i = 0; i < dropped.size(); i++) {
+                load.putInt(dropped.get(i));
+                pexSent.remove(dropped.get(i));
+            }
+            try {
+                writeMessage(buildPacket(load.capacity() + 1, messageTypes.getPexIndex(), load.array()));
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //The digests go out once per connection, as soon as this peer knows all of them.
+        public void sendPieceHashes() {
+            if (!supports(Capabilities.PIECE_HASHES) || piecesHashed.get() < pieceHashes.length() || !hashesSent.compareAndSet(false, true)) {
+                return;
+            }
+            int perFrame = (int) Math.min(1024, (configuration.getMaxFrameSize() - 5) / ContentStore.HASH_LENGTH);
+            try {
+                for (int first = 0; first < pieceHashes.length(); first += perFrame) {
+                    int count = Math.min(perFrame, pieceHashes.length() - first);
+                    ByteBuffer load = ByteBuffer.allocate(4 + count * ContentStore.HASH_LENGTH);
+                    load.putInt(first);
+                    for (int i = first; i < first + count; i++) {
+                        load.put(pieceHashes.get(i));
+                    }
+                    writeMessage(buildPacket(load.capacity() + 1, messageTypes.getPieceHashesIndex(), load.array()));
+                }
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+            }
+        }
+
+        //Seeders and empty peers skip encoding a bitfield when the other side understands HAVE_ALL/HAVE_NONE.
+        public void sendAvailabilityMessage() {
+            if (supports(Capabilities.FAST) && currentPeer.getHasFile() == 1) {
+                sendFlagMessage(messageTypes.getHaveAllIndex());
+            } else if (supports(Capabilities.FAST) && currentPeer.getNumberOfPieces() == 0) {
+                sendFlagMessage(messageTypes.getHaveNoneIndex());
+            } else {
+                sendBitFieldMsg();
+            }
+        }
+
+        public void sendFlagMessage(char messageType) {
+            try {
+                writeMessage(buildPacket(1, messageType, null));
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+        }
+
+        public void sendCancelMessage(int pieceIndex) {
+            try {
+                byte[] load = ByteBuffer.allocate(4).putInt(pieceIndex).array();
+                writeMessage(buildPacket(5, messageTypes.getCancelIndex(), load));
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void sendRejectMessage(int pieceIndex) {
+            if (!supports(Capabilities.FAST)) {
+                logger.logInfo("Peer " + currentPeerId + " dropped the request for piece " + pieceIndex + " from " + peerId);
+                return;
+            }
+            try {
+                byte[] load = ByteBuffer.allocate(4).putInt(pieceIndex).array();
+                writeMessage(buildPacket(5, messageTypes.getRejectIndex(), load));
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void sendNotInterestedMessage() {
+            try {
+                byte[] iamNotInterestedMessage = buildPacket(1, messageTypes.getNotInterestedIndex(), null);
 
-                        else if (messageType == messageTypes.getInterestedIndex()) {
-                            peerSocket.setInterested(true);
-                            logger.logInfo("Peer "+ currentPeer.getPeerId() +" received the ‘interested’ formattedMessage from "+ peerSocket.peerId);
-                        }
+                writeMessage(iamNotInterestedMessage);
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+        }
 
-                        else if (messageType == messageTypes.getNotInterestedIndex()) {
-                            peerSocket.setInterested(false);
-                            logger.logInfo("Peer "+ currentPeer.getPeerId() +" received the ‘not interested’ formattedMessage from "+ peerSocket.peerId);
-                            if (!peerSocket.getIsChoked()) {
-                                peerSocket.chokeConnection();
-                                peerSocket.sendChokeMessage();
-                            }
+        public void sendChokeMessage() {
+            try {
+                byte[] chokeMessage = buildPacket(1, messageTypes.getChokeIndex(), null);
+
+                writeMessage(chokeMessage);
+
+            } catch (IOException | CustomException e) {
+            e.printStackTrace();
+            System.exit(0);
+            }
+        }
+
+        public void sendUnChokeMessage() {
+
+            try {
+                byte[] unchokeMessage = buildPacket(1, messageTypes.getUnchokeIndex(), null);
+
+                writeMessage(unchokeMessage);
+
+            } catch (IOException | CustomException e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+        }
+
+    }
+
+    private static void openContentStore() throws IOException {
+        contentStore = new ContentStore(Paths.get(configuration.getContentStore()), configuration.getContentStoreSize());
+        pieceHashes = new AtomicReferenceArray<>(configuration.getTotalPieces());
+        contentWorker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread worker = new Thread(runnable, "content-store");
+            worker.setDaemon(true);
+            return worker;
+        });
+        //Pieces still being added when the swarm finishes get a few seconds before the index is written.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            contentWorker.shutdown();
+            try {
+                contentWorker.awaitTermination(10, TimeUnit.SECONDS);
+                contentStore.save();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, "content-store-save"));
+        if (currentPeer.getHasFile() == 1) {
+            contentWorker.execute(peerProcess::storeHeldPieces);
+        }
+    }
+
+    //Copies every held piece into the content store, learning the hashes of the file on the way.
+    private static void storeHeldPieces() {
+        for (int i = 0; i < configuration.getTotalPieces(); i++) {
+            if (!currentPeer.hasPiece(i)) continue;
+            int pieceLength = configuration.getPieceLength(i);
+            BufferArena.Slab slab = null;
+            try {
+                slab = bufferArena.acquire(pieceLength);
+                diskWriter.readPiece(i, slab.buffer());
+                slab.buffer().flip();
+                if (pieceHashes.compareAndSet(i, null, contentStore.put(slab.buffer()))) {
+                    piecesHashed.incrementAndGet();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                if (slab != null) slab.release();
+            }
+        }
+        if (piecesHashed.get() == pieceHashes.length()) {
+            for (PeerSocket peerSocket : socketMap.values()) {
+                peerSocket.sendPieceHashes();
+            }
+        }
+    }
+
+    //Records the digests a neighbour sent and fills every listed piece the store holds. Those pieces are claimed
+    //like requests before the first read, so the pipelines never ask the network for them.
+    static void onPieceHashes(PeerSocket peerSocket, ByteBuffer load) {
+        int first = load.remaining() >= 4 ? load.getInt() : -1;
+        int count = load.remaining() / ContentStore.HASH_LENGTH;
+        if (first < 0 || load.remaining() % ContentStore.HASH_LENGTH != 0 || first + count > pieceHashes.length()) {
+            logger.logError("Peer " + currentPeerId + " dropped malformed piece hashes from " + peerSocket.getPeerId());
+            return;
+        }
+        IntList claimed = new IntList();
+        for (int i = first; i < first + count; i++) {
+            byte[] hash = new byte[ContentStore.HASH_LENGTH];
+            load.get(hash);
+            if (pieceHashes.compareAndSet(i, null, hash)) {
+                piecesHashed.incrementAndGet();
+            }
+            if (!currentPeer.hasPiece(i) && contentStore.contains(pieceHashes.get(i)) && requestedPieces.set(i)) {
+                claimed.add(i);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            storeFillsPending.addAndGet(claimed.size());
+            contentWorker.execute(() -> fillFromStore(claimed));
+        }
+        if (piecesHashed.get() == pieceHashes.length()) {
+            for (PeerSocket otherSocket : socketMap.values()) {
+                otherSocket.sendPieceHashes();
+            }
+        }
+    }
+
+    //Each claim is dropped once its piece is stored, or once the store turns out not to have it after all.
+    private static void fillFromStore(IntList pieces) {
+        boolean missed = false;
+        for (int p = 0; p < pieces.size(); p++) {
+            int pieceIndex = pieces.get(p);
+            if (currentPeer.hasPiece(pieceIndex)) {
+                requestedPieces.clear(pieceIndex);
+                storeFillsPending.decrementAndGet();
+                continue;
+            }
+            int pieceLength = configuration.getPieceLength(pieceIndex);
+            BufferArena.Slab slab = null;
+            try {
+                memoryGovernor.reserve(pieceLength);
+                try {
+                    slab = bufferArena.acquire(pieceLength);
+                    if (!contentStore.read(pieceHashes.get(pieceIndex), slab.buffer())) {
+                        missed = true;
+                        continue;
+                    }
+                    slab.buffer().flip();
+                    boolean newPiece = storePiece(pieceIndex, slab);
+                    slab = null;
+                    if (newPiece) {
+                        logger.logInfo("Peer " + currentPeerId + " has filled the piece " + pieceIndex + " from the content store.");
+                        announcePiece(pieceIndex, null);
+                    }
+                } finally {
+                    if (slab != null) slab.release();
+                    memoryGovernor.release(pieceLength);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                requestedPieces.clear(pieceIndex);
+                storeFillsPending.decrementAndGet();
+            }
+        }
+        //Links that went idle while the store held the claims have to be told the misses are theirs to fetch.
+        if (missed) {
+            requestFromOthers(null);
+        }
+    }
+
+    //Tops up every unchoked link but the given one, which may be none, without waiting on a busy reader.
+    static void requestFromOthers(PeerSocket except) {
+        for (PeerSocket otherSocket : socketMap.values()) {
+            if (otherSocket != except && !otherSocket.isChokedByPeer() && !otherSocket.isSnubbed()
+                    && otherSocket.requestLock.tryLock()) {
+                try {
+                    otherSocket.fillPipelineLocked(-1, false);
+                } finally {
+                    otherSocket.requestLock.unlock();
+                }
+            }
+        }
+    }
+
+    //Turns a PIECE_DEFLATED payload into a PIECE one, or null when it does not inflate to the piece's length. Takes over the slab.
+    static BufferArena.Slab inflatePiece(BufferArena.Slab deflated) throws InterruptedException {
+        if (deflated == null) return null;
+        try {
+            ByteBuffer input = deflated.buffer();
+            if (pieceCompressor == null || input.remaining() < 4) return null;
+            int pieceIndex = input.getInt();
+            if (pieceIndex < 0 || pieceIndex >= configuration.getTotalPieces()) return null;
+            BufferArena.Slab piece = bufferArena.acquire(configuration.getPieceLength(pieceIndex) + 4);
+            piece.buffer().putInt(pieceIndex);
+            if (!pieceCompressor.inflate(input, piece.buffer())) {
+                piece.release();
+                return null;
+            }
+            piece.buffer().flip();
+            return piece;
+        } finally {
+            deflated.release();
+        }
+    }
+
+    //Stores a downloaded piece and flips its bit; false when the piece was already here. Takes over the slab either way.
+    static boolean storePiece(int pieceIndex, BufferArena.Slab payload) throws InterruptedException {
+        if (currentPeer.hasPiece(pieceIndex)) {
+            payload.release();
+            return false;
+        }
+        //The write is queued before the bit flips so an uploader never sees a piece it cannot read.
+        diskWriter.submit(pieceIndex, payload);
+        boolean newPiece = currentPeer.markBitOn(pieceIndex);
+        if (newPiece) {
+            currentPeer.incrementNumOfPieces();
+            if (pieceStream != null) {
+                pieceStream.onPieceCompleted();
+            }
+            if (erasure != null) {
+                erasure.onPieceStored(pieceIndex);
+            }
+        }
+        return newPiece;
+    }
+
+    //Queues a HAVE for a new piece to every neighbour but the one it came from, which may be none, and cancels
+    //any endgame duplicate of it still outstanding elsewhere; links that freed a slot that way are topped up.
+    static void announcePiece(int pieceIndex, PeerSocket source) {
+        downloadCompleted();
+        boolean cancelled = false;
+        for (PeerSocket otherSocket : socketMap.values()) {
+            if (otherSocket != source) {
+                otherSocket.queueHaveMessage(pieceIndex);
+                cancelled |= otherSocket.cancelDuplicate(pieceIndex);
+            }
+        }
+        if (cancelled) {
+            requestFromOthers(source);
+        }
+    }
+
+    static void downloadCompleted() {
+        //Pieces are written in place by the disk writer, so completion only has to wait for its queue.
+        if (currentPeer.getBitField().isFull() && currentPeer.markComplete()) {
+            try {
+                diskWriter.flush();
+                logger.logInfo("Peer " + currentPeer.getPeerId() + " has downloaded the complete file.");
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+            peersCompleted.incrementAndGet();
+            if (trackerClient != null) {
+                trackerClient.onDownloadCompleted();
+            }
+            if (contentStore != null) {
+                contentWorker.execute(peerProcess::storeHeldPieces);
+            }
+            //Filtered HAVEs never reach neighbours that already hold the last pieces, so completion is announced outright.
+            for (PeerSocket otherSocket : socketMap.values()) {
+                otherSocket.sendAvailabilityMessage();
+            }
+        }
+    }
+
+    private static class Server implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                ServerSocket server = new ServerSocket(currentPeer.getPort());
+                if (trackerClient != null) {
+                    //Peers come and go through the tracker, so connections are accepted for as long as this peer runs.
+                    while (true) {
+                        try {
+                            acceptConnection(server.accept());
+                        } catch (IOException exception) {
+                            exception.printStackTrace();
                         }
+                    }
+                }
+                //Wait for new connections from all peers initialized after itself.
+                boolean newPeers = false;
+                for(Peer peer : peerMap.values()){
+                    if(newPeers){
+                        acceptConnection(server.accept());
+                    }
 
-                        else if (messageType == messageTypes.getUnchokeIndex()) {
-                            peerSocket.unChoke();
-                            logger.logInfo("Peer " + currentPeer.getPeerId()+ " is unchoked by "+ peerSocket.peerId); //Is this right?
-                            System.out.println(peerSocket.getPeerId() + " is unchoked");
-                            Peer connectedPeerObject = peerMap.get(peerSocket.getPeerId());
+                    if (currentPeerId == peer.getPeerId()) newPeers = true;
+                }
+                //Completes after all TCP connections have been created.
+                server.close();
 
-                            int randomFilePiece = Utils.getRandomFilePiece(currentPeer.getBitField(),
-                                    connectedPeerObject.getBitField(), connectedPeerObject.getPiecesLength());
+            } catch (Exception exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
 
-                            if (randomFilePiece == -1) {
-                                System.out.println("No more pieces required.");
-                            }
-                            else {
-                                peerSocket.sendRequestMessage(randomFilePiece);
-                            }
+    private static void acceptConnection(Socket socket) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] handshakePacket = new byte[CommonConstants.getHandshakeLength()];
+        inputStream.readFully(handshakePacket);
+        int remotePeerId = Utils.getHandshakePeerId(handshakePacket);
+
+        //Authenticating handshake
+        if (!Utils.isValidHandshake(handshakePacket)) {
+            logger.logError("Peer " + currentPeerId + " rejected an invalid handshake");
+            socket.close();
+            return;
+        }
+        //A peer that joined since the last announce is admitted at the address it dialed from and the port it listens on.
+        int remotePort = Utils.getHandshakePort(handshakePacket);
+        if (trackerClient != null && !peerMap.containsKey(remotePeerId) && remotePort != 0) {
+            peerMap.put(remotePeerId, new Peer(remotePeerId, socket.getInetAddress().getHostAddress(), remotePort, 0));
+        }
+        if (!peerMap.containsKey(remotePeerId)) {
+            logger.logError("Peer " + currentPeerId + " rejected the unknown Peer " + remotePeerId);
+            socket.close();
+            return;
+        }
+        if (trackerClient != null && (socketMap.containsKey(remotePeerId) || socketMap.size() >= configuration.getMaxConnections())) {
+            logger.logInfo("Peer " + currentPeerId + " turned away Peer " + remotePeerId + " with " + socketMap.size() + " connections open");
+            socket.close();
+            return;
+        }
+        long capabilities = Capabilities.negotiate(Capabilities.getLocalCapabilities(),
+                Utils.getHandshakeCapabilities(handshakePacket));
+        logger.logInfo("Peer " + currentPeerId +" receives handshake from Peer " + remotePeerId);
+        UtpConnection link = (capabilities & Capabilities.UDP_TRANSPORT) != 0 ? openUdpLink(socket, remotePeerId) : null;
+        outputStream.write(Utils.createHandshakePacket(currentPeerId, Capabilities.getLocalCapabilities(), currentPeer.getPort()));
+        outputStream.flush();
+        if (link != null) {
+            inputStream = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(link.getOutputStream()));
+        }
+
+        socketMap.put(remotePeerId, new PeerSocket(socket, remotePeerId, inputStream, outputStream, capabilities));
+        logger.logInfo("Peer" + currentPeerId + " is connected from Peer" + remotePeerId
+                + " with capabilities " + Capabilities.describe(capabilities));
+    }
+
+    private static class Client implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                for (Peer neighborPeer : peerMap.values()) {
+                    if (neighborPeer.getPeerId() == currentPeerId) break;
+                    connectTo(neighborPeer);
+                }
+
+            }
+            catch (IOException exception) {
+
+                exception.printStackTrace();
+
+            }
+        }
+    }
+
+    private static void connectTo(Peer neighborPeer) throws IOException {
+        int neighborPeerId = neighborPeer.getPeerId();
+        Socket socket = new Socket(neighborPeer.getHostName(), neighborPeer.getPort());
+        logger.logInfo("Peer " + currentPeerId + " makes a connection to Peer "+neighborPeerId);
+        System.out.println("Client: " + neighborPeerId + " Socket created. Connecting to Server: " + neighborPeer.getHostName()
+                + " with " + neighborPeer.getPort());
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] handshakePacket = Utils.createHandshakePacket(currentPeerId, Capabilities.getLocalCapabilities(), currentPeer.getPort());
+        outputStream.write(handshakePacket);
+        outputStream.flush();
+        logger.logInfo("Peer "+currentPeerId+ "sends handshake to "+neighborPeerId);
+        System.out.println("Client: " + neighborPeerId + " Handshake packet sent to Connecting to Server: "
+                + neighborPeer.getHostName() + " with " + neighborPeer.getPort());
+
+        try {
+            inputStream.readFully(handshakePacket);
+        } catch (EOFException e) {
+            //The other side turned the connection away.
+            socket.close();
+            return;
+        }
+        int receivedPeerId = Utils.getHandshakePeerId(handshakePacket);
+
+        //Authenticating handshake
+        if(Utils.isValidHandshake(handshakePacket) && receivedPeerId == neighborPeerId){
+            long capabilities = Capabilities.negotiate(Capabilities.getLocalCapabilities(),
+                    Utils.getHandshakeCapabilities(handshakePacket));
+            if ((capabilities & Capabilities.UDP_TRANSPORT) != 0) {
+                UtpConnection link = openUdpLink(socket, neighborPeerId);
+                inputStream = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+                outputStream = new DataOutputStream(new BufferedOutputStream(link.getOutputStream()));
+            }
+            socketMap.put(neighborPeerId, new PeerSocket(socket, neighborPeerId, inputStream, outputStream, capabilities));
+            logger.logInfo("Peer " + currentPeerId +" receives handshake from Peer " + receivedPeerId
+                    + " with capabilities " + Capabilities.describe(capabilities));
+            System.out.println("Client: " + neighborPeerId + " Handshake packet received from Server: " + neighborPeer.getHostName()
+                    + " with " + neighborPeer.getPort() + " Capabilities = " + Capabilities.describe(capabilities) + " appended to "
+                    + " Updated connections " + socketMap.size() + "/" + (peerMap.size() - 1)
+                    + " connections till now");
+        }else{
+            socket.close();
+        }
+    }
+
+    //Announces every TrackerInterval seconds and straight after the download completes. Peers in the answer are added to
+    //peerMap, and those with a lower id are dialled while connections are free; the higher id always dials, so a pair never connects twice.
+    private static class TrackerClient implements Runnable {
+
+        private final String host;
+        private final int port;
+        private final IntList announcedPeers = new IntList();
+        private volatile boolean swarmComplete = false;
+        private volatile int failedAnnounces = 0;
+        private boolean completionPending = false;
+        //Most peers the tracker has listed at once, this one included.
+        private int largestSwarm = 0;
+
+        public TrackerClient(String host, int port) {
+            this.host = host;
+            this.port = port;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> announce(Tracker.STOPPED), "tracker-stop"));
+        }
+
+        //After three failed announces in a row the tracker counts as gone. With PEX the swarm carries on, and this peer
+        //stops once every peer it knows of, from PeerInfo.cfg or gossip, has completed.
+        public boolean isSwarmComplete() {
+            if (swarmComplete) return true;
+            return peerExchange != null && failedAnnounces >= 3 && peerMap.size() > 1 && peersCompleted.get() >= peerMap.size();
+        }
+
+        public synchronized void onDownloadCompleted() {
+            completionPending = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            String event = Tracker.STARTED;
+            while (!swarmComplete) {
+                announce(event);
+                connectToPeers();
+                synchronized (this) {
+                    try {
+                        if (!completionPending) wait(configuration.getTrackerInterval() * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    event = completionPending ? Tracker.COMPLETED : Tracker.UPDATE;
+                    completionPending = false;
+                }
+            }
+        }
+
+        public synchronized void announce(String event) {
+            int left = configuration.getTotalPieces() - currentPeer.getBitField().cardinality();
+            try (Socket socket = new Socket(host, port)) {
+                socket.setSoTimeout(2000);
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                writer.write("announce " + currentPeerId + " " + currentPeer.getHostName() + " " + currentPeer.getPort()
+                        + " " + left + " " + event + "\n");
+                writer.flush();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String scrape = reader.readLine();
+                if (scrape == null || scrape.startsWith("error")) {
+                    throw new IOException("Tracker answered " + scrape);
+                }
+                //interval <s> complete <n> incomplete <n> finished <n>
+                String[] counts = scrape.split(" ");
+                int complete = Integer.parseInt(counts[3]);
+                int incomplete = Integer.parseInt(counts[5]);
+                int finished = Integer.parseInt(counts[7]);
+                if (Tracker.STOPPED.equals(event)) return;
+                announcedPeers.clear();
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    String[] words = line.split(" ");
+                    int peerId = Integer.parseInt(words[0]);
+                    announcedPeers.add(peerId);
+                    if (!peerMap.containsKey(peerId)) {
+                        peerMap.put(peerId, new Peer(peerId, words[1], Integer.parseInt(words[2]), Integer.parseInt(words[3])));
+                    }
+                }
+                //A seed started without PeerInfo.cfg is the whole swarm until the first leecher announces, so the swarm only
+                //counts as finished once some other peer has been listed and at least as many peers as ever listed have completed.
+                largestSwarm = Math.max(largestSwarm, complete + incomplete);
+                swarmComplete = incomplete == 0 && largestSwarm > 1 && finished >= Math.max(configuredPeers, largestSwarm);
+                failedAnnounces = 0;
+                logger.logInfo("Peer " + currentPeerId + " announced " + event + " to the tracker: " + scrape
+                        + ", " + announcedPeers.size() + " peers returned");
+            } catch (IOException | RuntimeException e) {
+                failedAnnounces++;
+                logger.logError("Peer " + currentPeerId + " could not announce to the tracker: " + e.getMessage());
+            }
+        }
+
+        public void connectToPeers() {
+            IntList candidates = new IntList();
+            if (peerExchange != null) {
+                peerExchange.rankCandidates(candidates);
+            }
+            synchronized (this) {
+                for (int i = 0; i < announcedPeers.size(); i++) {
+                    if (candidates.indexOf(announcedPeers.get(i)) < 0) candidates.add(announcedPeers.get(i));
+                }
+            }
+            //Without an answer from the tracker every peer known from PeerInfo.cfg or PEX is worth a try.
+            if (failedAnnounces > 0) {
+                for (Peer peer : peerMap.values()) {
+                    if (candidates.indexOf(peer.getPeerId()) < 0) candidates.add(peer.getPeerId());
+                }
+            }
+            for (int i = 0; i < candidates.size() && socketMap.size() < configuration.getMaxConnections(); i++) {
+                int peerId = candidates.get(i);
+                if (peerId >= currentPeerId || socketMap.containsKey(peerId)) continue;
+                try {
+                    connectTo(peerMap.get(peerId));
+                } catch (IOException e) {
+                    logger.logError("Peer " + currentPeerId + " could not connect to Peer " + peerId + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    //Gossips the neighbour list every PexInterval seconds and ranks what it hears for the connection manager: peers that
+    //more neighbours report, and seeds while this peer still downloads, are dialled first. When every connection is taken
+    //and a seed is waiting, the slowest non-seed neighbour makes room for it.
+    private static class PeerExchange implements Runnable {
+
+        static final int SEED = 1;
+        static final int MAX_ENTRIES = 50;
+
+        //Peer id to the number of neighbours currently reporting a connection to it.
+        private final IntIntMap mentions = new IntIntMap(0);
+        private int messages = 0;
+        private int ignored = 0;
+
+        @Override
+        public void run() {
+            while (!isSwarmComplete()) {
+                try {
+                    Thread.sleep(configuration.getPexInterval() * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (PeerSocket peerSocket : socketMap.values()) {
+                    if (peerSocket.supports(Capabilities.PEX)) peerSocket.sendPexMessage();
+                }
+                if (makeRoomForSeed()) {
+                    trackerClient.connectToPeers();
+                }
+            }
+        }
 
+        public void onPexMessage(PeerSocket peerSocket, ByteBuffer load) {
+            long now = System.nanoTime();
+            //A neighbour sending faster than half the interval is ignored rather than trusted.
+            if (now - peerSocket.lastPexReceived < configuration.getPexInterval() * 500_000_000L) {
+                synchronized (this) {
+                    ignored++;
+                }
+                return;
+            }
+            peerSocket.lastPexReceived = now;
+            try {
+                int addedCount = load.getShort() & 0xFFFF;
+                int learned = 0;
+                synchronized (this) {
+                    messages++;
+                    for (int i = 0; i < addedCount && i < MAX_ENTRIES; i++) {
+                        int peerId = load.getInt();
+                        int port = load.getShort() & 0xFFFF;
+                        int flags = load.get();
+                        byte[] host = new byte[load.get() & 0xFF];
+                        load.get(host);
+                        if (peerId == currentPeerId) continue;
+                        mentions.put(peerId, mentions.get(peerId) + 1);
+                        if (!peerMap.containsKey(peerId)) {
+                            peerMap.put(peerId, new Peer(peerId, new String(host, StandardCharsets.US_ASCII), port, flags & SEED));
+                            learned++;
                         }
-                        else if (messageType == messageTypes.getRequestIndex()) {
-                            peerSocket.sendPieceMessage(ByteBuffer.wrap(formattedMessage).getInt());
+                        if ((flags & SEED) != 0 && peerMap.get(peerId).markComplete()) {
+                            peersCompleted.incrementAndGet();
                         }
-                        else if (messageType == messageTypes.getPieceIndex()) {
-                            int receivedPieceIndex = ByteBuffer.wrap(Utils.returnArrayCopy(formattedMessage, 0, 4)).getInt();
-                            Peer neighborPeer = peerMap.get(peerSocket.getPeerId());
-                            currentFilePieces[receivedPieceIndex] = new byte[formattedMessage.length - 4];
-                            int index = 0;
-                            for (int i = 4; i < formattedMessage.length; i++) {
-                                byte[] currentFilePosition = currentFilePieces[receivedPieceIndex];
-                                currentFilePosition[index++] = formattedMessage[i];
-                            }
-                            currentPeer.markBitOn(receivedPieceIndex);
-                            currentPeer.incrementNumOfPieces();
-                            if (!peerSocket.getIsChoked()) {
-                                int pieceIndex = Utils.getRandomFilePiece(currentPeer.getBitField(),
-                                        neighborPeer.getBitField(), neighborPeer.getPiecesLength());
-                                if (pieceIndex != -1) {
-                                    peerSocket.sendRequestMessage(pieceIndex);
-                                }
-                            }
-                            double downSpeed = ((double) (formattedMessage.length + 5) / (endTime - startTime));
-                            if (neighborPeer.getHasFile() == 1) {
-                                peerSocket.setDownloadSpeed(-1);
-                            } else {
-                                peerSocket.setDownloadSpeed(downSpeed);
-                            }
-                            logger.logInfo("Peer "+ currentPeer.getPeerId() + "has downloaded the piece "+ receivedPieceIndex + " from "+ peerSocket.getPeerId()+".");
+                    }
+                    int droppedCount = load.getShort() & 0xFFFF;
+                    for (int i = 0; i < droppedCount && i < MAX_ENTRIES; i++) {
+                        int peerId = load.getInt();
+                        int count = mentions.get(peerId);
+                        if (count > 1) mentions.put(peerId, count - 1);
+                        else mentions.remove(peerId);
+                    }
+                }
+                if (learned > 0) {
+                    logger.logInfo("Peer " + currentPeerId + " learned " + learned + " peers over PEX from " + peerSocket.getPeerId());
+                }
+            } catch (BufferUnderflowException e) {
+                logger.logError("Peer " + currentPeerId + " dropped a malformed PEX message from " + peerSocket.getPeerId());
+            }
+        }
 
-                            printDownloadProgress();
-                            peerSocket.downloadCompleted(receivedPieceIndex);
-                            for (int socketNodeId : socketMap.keySet()) {
-                                PeerSocket peerSocket = socketMap.get(socketNodeId);
-                                peerSocket.sendHaveMessage(receivedPieceIndex);
-                            }
+        //Fills the list with peers this one may dial, best first.
+        public synchronized void rankCandidates(IntList candidates) {
+            for (int slot = 0; slot < mentions.capacity(); slot++) {
+                if (!mentions.isUsed(slot)) continue;
+                int peerId = mentions.keyAt(slot);
+                if (peerId < currentPeerId && !socketMap.containsKey(peerId)) candidates.add(peerId);
+            }
+            for (int i = 1; i < candidates.size(); i++) {
+                for (int j = i; j > 0 && score(candidates.get(j)) > score(candidates.get(j - 1)); j--) {
+                    candidates.swap(j, j - 1);
+                }
+            }
+        }
 
-                        } else if (messageType == messageTypes.getHaveIndex()) {
-                            int havePieceIndex = ByteBuffer.wrap(formattedMessage).getInt();
-                            Peer peer = peerMap.get(peerSocket.getPeerId());
-                            peer.markBitOn(havePieceIndex);
-                            if (peer.getNoOfPiecesStored() == currentPeer.getPiecesLength()) {
-                                peer.setHasFile(1);
-                                peersCompleted++;
-                            }
+        private int score(int peerId) {
+            Peer peer = peerMap.get(peerId);
+            boolean wanted = peer != null && peer.getHasFile() == 1 && currentPeer.getHasFile() != 1;
+            return mentions.get(peerId) + (wanted ? MAX_ENTRIES : 0);
+        }
 
+        private boolean makeRoomForSeed() {
+            if (currentPeer.getHasFile() == 1 || socketMap.size() < configuration.getMaxConnections()) return false;
+            IntList candidates = new IntList();
+            rankCandidates(candidates);
+            if (candidates.isEmpty() || peerMap.get(candidates.get(0)).getHasFile() != 1) return false;
+            PeerSocket slowest = null;
+            for (PeerSocket peerSocket : socketMap.values()) {
+                if (peerMap.get(peerSocket.getPeerId()).getHasFile() == 1) continue;
+                if (slowest == null || peerSocket.getDownloadSpeed() < slowest.getDownloadSpeed()) slowest = peerSocket;
+            }
+            if (slowest == null) return false;
+            logger.logInfo("Peer " + currentPeerId + " drops Peer " + slowest.getPeerId() + " to make room for seed " + candidates.get(0));
+            try {
+                slowest.getSocket().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        public synchronized String getStatistics() {
+            return messages + " messages, " + ignored + " ignored as too frequent, " + mentions.size() + " peers heard of";
+        }
+    }
+
+    //Once both sides agree on UDP the messages move to a UDP link; the TCP socket stays open only so each side sees the other leave.
+    private static UtpConnection openUdpLink(Socket socket, int remotePeerId) {
+        Peer peer = peerMap.get(remotePeerId);
+        UtpConnection link = udpTransport.open(remotePeerId, new InetSocketAddress(peer.getHostName(), peer.getPort()), socket);
+        Thread watcher = new Thread(() -> {
+            try {
+                socket.getInputStream().read();
+            } catch (IOException ignored) {
+            }
+            link.abort();
+        }, "udp-watch-" + remotePeerId);
+        watcher.setDaemon(true);
+        watcher.start();
+        return link;
+    }
+
+    public static void initializeResources(String peerId) throws IOException {
+        messageTypes = new MessageTypes();//for messages
+        configuration = new Configuration();//common cfg data
+        peerMap = new ConcurrentIntMap<>();//peer info cfg hash map
+        socketMap = new ConcurrentIntMap<>();
+        createDirectory(peerId);
+        getTorrentDetails();
+        readCommonConfig();
+        configuration.printConfigDetails();
+        readPeerConfig();
+        configuration.printPeerDetails();
+        logger = new MyLogger(peerId);
+        socketMap = new ConcurrentIntMap<>();
+    }
 
-                            if (Utils.checkMissingPieces(currentPeer.getBitField(), peer.getBitField(), peer.getPiecesLength())) {
-                                peerSocket.sendInterestedMessage();
-                            } else {
-                                peerSocket.sendNotInterestedMessage() ;
-                            }
-                            logger.logInfo("Peer " + currentPeer.getPeerId()+" received the ‘have’ formattedMessage from "+ peerSocket.getPeerId()+" for the piece " + havePieceIndex);
+    public static void readPeerConfig() throws IOException {
+        //With a tracker the file is optional; peers that are not in it join with their address on the command line.
+        if (configuration.hasTracker() && !Files.exists(Paths.get(CommonConstants.getPeerInfoFileName()))) return;
+        ArrayList<String> aList = parseFile(CommonConstants.getPeerInfoFileName());
+        configuredPeers = aList.size();
+        for(String line : aList){
+            String[] words = line.split(" ");
+            peerMap.put(Integer.parseInt(words[0]), new Peer(Integer.parseInt(words[0]), words[1], Integer.valueOf(words[2]), Integer.parseInt(words[3])));
+        }
+    }
 
-                        }
-                        else if (messageType == messageTypes.getChokeIndex()) {
-                            logger.logInfo("Peer "+ currentPeer.getPeerId() +" is choked by "+ peerSocket.peerId);
-                            peerSocket.chokeConnection();
-                        }
-                    }
+    public static void readCommonConfig() throws IOException {
+        readConfiguration(configuration, CommonConstants.getCommonConfigFileName());
+    }
 
-                    System.out.println("Finished executing");
-                    Thread.sleep(6000);
-                }
-                catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
+    public static void readConfiguration(Configuration target, String fileName) throws IOException {
+        for (String line : parseFile(fileName)) {
+            String[] words = line.trim().split("\\s+");
+            if (words.length == 2) {
+                try {
+                    target.setProperty(words[0], words[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(words[0] + " must be a number, not " + words[1]);
                 }
             }
         }
+        target.validate();
     }
 
-    private static class PeerSocket {
+    public static ArrayList<String> parseFile(String fileName) throws IOException {
+        ArrayList<String> aList = new ArrayList<>();
+        BufferedReader bReader = new BufferedReader(new FileReader(fileName));
+        String line = bReader.readLine();
+        while(line != null){
+            aList.add(line);
+            line = bReader.readLine();
+        }
+        bReader.close();
+        return aList;
+    }
 
-        private double downloadSpeed = 0;
-        private boolean isOptimisticallyUnchoked = false;
-        private Socket socket;
-        private int peerId;
-        private boolean isInterested = false;
-        private boolean isChoked = true;
+    public static void createDirectory(String peerId) throws IOException {
 
-        public PeerSocket(Socket socket, int peerId) {
-            this.socket = socket;
-            this.peerId = peerId;
-            (new ParentThread(this)).start();
+        Path path = Paths.get(".//"+peerId);
+        if(Files.exists(path)){
+            clearDirectory(path);
+            currentNodeDir = path.toFile();
+        }else{
+            currentNodeDir = Files.createDirectory(path).toFile();
         }
+    }
 
-        public int getPeerId() {
-            return this.peerId;
+    private static void clearDirectory(Path path) throws IOException {
+        //Deleting every file.
+        String fileName = CommonConstants.getTheFileName();
+        Stream<Path> files = Files.list(path);
+        for(Object obj : files.toArray()){
+            Path file = (Path) obj;
+            if(!file.getFileName().toString().equals(fileName)){
+                Files.deleteIfExists(file);
+            }
         }
+        files.close();
+    }
 
-        public double getDownloadSpeed() {
-            return downloadSpeed;
-        }
+    public static void openPieceStore() throws IOException {
+        Path filePath = Paths.get(CommonConstants.getRootPath(), String.valueOf(currentPeerId), theFileName);
+        boolean writable = currentPeer.getHasFile() == 0;
+        pieceStore = new PieceStore(filePath, configuration.getFileSize(), configuration.getPieceSize(),
+                configuration.getMappingWindowSize(), configuration.getMaxMappedWindows(), writable);
+        diskWriter = new DiskWriter(pieceStore, configuration.getDiskThreads(), configuration.getDiskQueueCapacity(),
+                configuration.getDiskCoalesceLimit(), configuration.getDiskSyncPolicy());
+        bufferArena = new BufferArena(configuration.getArenaSize(), (int) configuration.getPieceSize() + 9);
+        memoryGovernor = new MemoryGovernor(configuration.getMemoryBudget(), bufferArena);
+        pieceCache = new PieceCache(diskWriter, bufferArena, configuration.getPieceCacheSize(), configuration.getReadAheadPieces());
+    }
 
-        public void setDownloadSpeed(double downloadSpeed) {
-            this.downloadSpeed = downloadSpeed;
+    public static void divideIntoPieces() throws IOException {
+        int noOfPieces = configuration.getTotalPieces();
+        requestedPieces = new AtomicBitSet(noOfPieces);
+        requestTimer = new TimerWheel("request-timer", 50, 512);
+        requestExpiry = Executors.newCachedThreadPool(runnable -> {
+            Thread expiry = new Thread(runnable, "request-expiry");
+            expiry.setDaemon(true);
+            return expiry;
+        });
+        uploadWorkers = Executors.newCachedThreadPool(runnable -> {
+            Thread upload = new Thread(runnable, "upload");
+            upload.setDaemon(true);
+            return upload;
+        });
+        if (configuration.isStreaming()) {
+            streamingPicker = new StreamingPicker(noOfPieces, configuration.getStreamingWindow(), configuration.getStreamingDeadline());
+            pieceStream = new PieceStream(streamingPicker, configuration.getFileSize(), configuration.getPieceSize());
         }
 
-        public boolean getIsChoked() {
-            return this.isChoked;
+        if(currentPeer.getHasFile() == 1){
+            if (currentPeer.markComplete()) {
+                peersCompleted.incrementAndGet();
+            }
+            currentPeer.setBitfield(AtomicBitSet.full(noOfPieces));
+            for (int i = 0; i < noOfPieces; i++) {
+                currentPeer.incrementNumOfPieces();
+            }
+        }else{
+            currentPeer.setBitfield(new AtomicBitSet(noOfPieces));
         }
+        openPieceStore();
+    }
 
-        public void chokeConnection() {
-            this.isChoked = true;
-        }
+    static boolean isSwarmComplete() {
+        if (replaying) return false;
+        return trackerClient != null ? trackerClient.isSwarmComplete() : peersCompleted.get() >= peerMap.size();
+    }
 
-        public void optimisticallyUnchoke() {
-            this.isOptimisticallyUnchoked = true;
+    public static void logStatistics() {
+        logger.logInfo("Peer " + currentPeerId + " piece cache: " + pieceCache.getStatistics());
+        logger.logInfo("Peer " + currentPeerId + " disk writer: " + diskWriter.getStatistics());
+        logger.logInfo("Peer " + currentPeerId + " buffer arena: " + bufferArena.getStatistics());
+        logger.logInfo("Peer " + currentPeerId + " memory governor: " + memoryGovernor.getStatistics());
+        if (udpTransport != null) {
+            logger.logInfo("Peer " + currentPeerId + " udp transport: " + udpTransport.getStatistics());
+            for (UtpConnection link : udpTransport.getConnections()) {
+                logger.logInfo("Peer " + currentPeerId + " udp link to " + link.getRemotePeerId() + ": " + link.getStatistics());
+            }
         }
-
-        public void optimisticallyChoke() {
-            isOptimisticallyUnchoked = false;
+        if (peerExchange != null) {
+            logger.logInfo("Peer " + currentPeerId + " peer exchange: " + peerExchange.getStatistics());
         }
-
-        public boolean isOptimisticallyUnchoked() {
-            return isOptimisticallyUnchoked;
+        if (webSeed != null) {
+            logger.logInfo("Peer " + currentPeerId + " web seed: " + webSeed.getStatistics());
         }
-
-        public void unChoke() {
-            this.isChoked = false;
+        if (traceRecorder != null) {
+            logger.logInfo("Peer " + currentPeerId + " trace: " + traceRecorder.getStatistics());
         }
-
-        public boolean isInterested() {
-            return this.isInterested;
+        if (pieceCompressor != null) {
+            logger.logInfo("Peer " + currentPeerId + " compression: " + pieceCompressor.getStatistics());
         }
-
-        public void setInterested(boolean interested) {
-            isInterested = interested;
+        if (contentStore != null) {
+            logger.logInfo("Peer " + currentPeerId + " content store: " + contentStore.getStatistics());
+        }
+        if (erasure != null) {
+            logger.logInfo("Peer " + currentPeerId + " erasure coding: " + erasure.getStatistics());
+        }
+        for (PeerSocket peerSocket : socketMap.values()) {
+            logger.logInfo("Peer " + currentPeerId + " pipeline to " + peerSocket.getPeerId() + ": " + peerSocket.pipeline.getStatistics()
+                    + ", " + peerSocket.stalls + " stalls" + (peerSocket.isSnubbed() ? ", snubbed" : ""));
         }
+    }
 
-        public Socket getSocket() {
-            return this.socket;
+    //Standalone tracker: "java peerProcess tracker" in the directory holding Common.cfg.
+    private static void runTracker() throws IOException {
+        configuration = new Configuration();
+        readCommonConfig();
+        if (!configuration.hasTracker()) {
+            throw new IOException(CommonConstants.getCommonConfigFileName() + " has no Tracker setting");
         }
+        System.out.println("Tracker listening on port " + configuration.getTrackerPort());
+        new Tracker(configuration.getTrackerPort(), configuration.getTrackerInterval(), configuration.getTrackerNumWant()).run();
+    }
 
-        public byte[] getFilePieces(int pInd, byte[] piece) {
-            int index = 0;
-            int pieceLength = piece.length;
-            byte[] result = new byte[pieceLength+4];
+    public static void getTorrentDetails() {
+        theFileName = CommonConstants.getTheFileName();
+    }
+    private static void loadCurrentPeer() throws IOException {
+        currentPeer = peerMap.get(currentPeerId);
+        if (currentPeer == null) {
+            throw new IOException("Peer " + currentPeerId + " is not in " + CommonConstants.getPeerInfoFileName()
+                    + "; give its host, port and hasFile after the peer id");
+        }
+        divideIntoPieces();
+        if (configuration.isSuperSeeding() && currentPeer.getHasFile() == 1) {
+            superSeeder = new SuperSeeder(configuration.getTotalPieces());
+        }
+        if (configuration.isCompression()) {
+            pieceCompressor = new PieceCompressor(pieceCache, bufferArena, configuration.getTotalPieces(), configuration.getCompressionCacheSize());
+        }
+        if (configuration.getErasureRepairPieces() > 0) {
+            erasure = new ErasureRepair(configuration.getErasureGroupSize(), configuration.getErasureRepairPieces());
+        }
+        if (configuration.getContentStore() != null) {
+            openContentStore();
+        }
+    }
 
-            byte[] tempArray = ByteBuffer.allocate(4).putInt(pInd).array();
-            int i = 0;
-            while (i < tempArray.length) {
-                result[index] = tempArray[i];
-                i = i + 1;
-                index = index + 1;
+    //Replays a trace written with TraceFile: "java peerProcess replay <trace> [max]" from a directory holding the
+    //same Common.cfg and PeerInfo.cfg. Only the dispatch loops, disk writer and cache run; no neighbours are dialled.
+    private static class TraceReplay {
+
+        private static class Feed {
+            final int peerId;
+            final long capabilities;
+            final ArrayList<byte[]> frames = new ArrayList<>();
+            long[] times = new long[64];
+            long bytes = 0;
+            Socket driverSide;
+            PeerSocket peerSocket;
+
+            Feed(int peerId, long capabilities) {
+                this.peerId = peerId;
+                this.capabilities = capabilities;
             }
-            i = 0;
-            while (i < pieceLength) {
-                result[index] = piece[i];
-                i = i + 1;
-                index = index + 1;
-            }
-            byte[] returnPacket = null;
-
-
-            try {
-                int totalLength = pieceLength + 5;
-                char type = messageTypes.getPieceIndex();
-                returnPacket =  buildPacket(totalLength, type, result);
 
-            } catch(CustomException e) {
-                e.printStackTrace();
-                System.exit(0);
+            void add(long time, byte[] frame) {
+                if (frames.size() == times.length) {
+                    times = Arrays.copyOf(times, times.length * 2);
+                }
+                times[frames.size()] = time;
+                frames.add(frame);
+                bytes += frame.length;
             }
-
-            return returnPacket;
         }
 
-        public byte[] buildPacket(int length, char messageType, byte[] data) throws CustomException {
+        private final LinkedHashMap<Integer, Feed> feeds = new LinkedHashMap<>();
+        private final boolean maxSpeed;
+        private long firstFrameTime = -1;
+        private long lastFrameTime = 0;
+        private int sentFrames = 0;
 
-            if (messageType == messageTypes.getInterestedIndex() || messageType == messageTypes.getNotInterestedIndex() || messageType == messageTypes.getUnchokeIndex() || messageType == messageTypes.getChokeIndex()) {
+        TraceReplay(boolean maxSpeed) {
+            this.maxSpeed = maxSpeed;
+        }
 
-                int index = 0;
-                byte type = (byte) messageType;
-                byte[] returnPacket = new byte[length + 4];
-                byte[] header = ByteBuffer.allocate(4).putInt(length).array();
-                int checkLength = header.length;
-                int j = 0;
-                while (j<checkLength) {
-                    byte m = header[j];
-                    returnPacket[index] = m;
-                    index = index+1;
-                    j = j + 1;
+        void run(Path trace) throws IOException, InterruptedException {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(trace)))) {
+                if (input.readInt() != TraceRecorder.MAGIC || input.readInt() != TraceRecorder.VERSION) {
+                    throw new IOException(trace + " is not a trace");
                 }
-                returnPacket[index] = type;
-                return returnPacket;
-            }
-            else if (messageType == messageTypes.getBitFieldIndex() || messageType == messageTypes.getRequestIndex() || messageType == messageTypes.getPieceIndex() || messageType == messageTypes.getHaveIndex()) {
-
-                int index = 0;
-                byte msgType = (byte) messageType;
-                byte[] resultPacket = new byte[length + 4];
-                byte[] header = ByteBuffer.allocate(4).putInt(length).array();
-                int checkLength = header.length;
-                int checkLength1 = data.length;
-                int i = 0;
-                while(i<checkLength){
-                    byte m = header[i];
-                    resultPacket[index] = m;
-                    index = index+1;
-                    i = i + 1;
+                currentPeerId = input.readInt();
+                int hasFile = input.readInt();
+                input.readLong();
+                replaying = true;
+                initializeResources(String.valueOf(currentPeerId));
+                if (!peerMap.containsKey(currentPeerId)) {
+                    peerMap.put(currentPeerId, new Peer(currentPeerId, "localhost", 0, hasFile));
                 }
-                resultPacket[index++] = msgType;
-                int j = 0;
-                while(j<checkLength1){
-                    byte m = data[j];
-                    resultPacket[index] = m;
-                    index = index + 1;
-                    j = j + 1;
+                loadCurrentPeer();
+                readRecords(input);
+            }
+            //Frames are loaded up front so reading the trace is not part of what is measured.
+            ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            for (Feed feed : feeds.values()) {
+                if (!peerMap.containsKey(feed.peerId)) {
+                    peerMap.put(feed.peerId, new Peer(feed.peerId, "localhost", 0, 0));
                 }
-
-                return resultPacket;
+                feed.driverSide = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+                Socket peerSide = listener.accept();
+                DataInputStream inputStream = new DataInputStream(new BufferedInputStream(peerSide.getInputStream()));
+                DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(peerSide.getOutputStream()));
+                feed.peerSocket = new PeerSocket(peerSide, feed.peerId, inputStream, outputStream,
+                        feed.capabilities & ~Capabilities.UDP_TRANSPORT);
+                socketMap.put(feed.peerId, feed.peerSocket);
             }
-            else {
-                throw new CustomException("Invalid message type " + messageType);
+            listener.close();
+
+            long started = System.nanoTime();
+            ArrayList<Thread> feeders = new ArrayList<>();
+            for (Feed feed : feeds.values()) {
+                Thread drainer = new Thread(() -> drain(feed), "replay-drain-" + feed.peerId);
+                drainer.setDaemon(true);
+                drainer.start();
+                Thread feeder = new Thread(() -> feed(feed, started), "replay-feed-" + feed.peerId);
+                feeder.start();
+                feeders.add(feeder);
+            }
+            long frames = 0;
+            long bytes = 0;
+            for (Feed feed : feeds.values()) {
+                feed.peerSocket.awaitReader();
+                //A loop that stopped early leaves its feeder blocked on a full socket; closing the socket releases it.
+                feed.driverSide.close();
+                frames += feed.frames.size();
+                bytes += feed.bytes;
             }
+            for (Thread feeder : feeders) {
+                feeder.join();
+            }
+            diskWriter.flush();
+            double seconds = (System.nanoTime() - started) / 1_000_000_000.0;
+            String result = "Peer " + currentPeerId + " replayed " + frames + " frames (" + bytes + " bytes) on " + feeds.size()
+                    + " connections in " + String.format("%.3f", seconds) + " s at " + (maxSpeed ? "maximum" : "recorded") + " speed: "
+                    + String.format("%.0f frames/s, %.2f MB/s", frames / seconds, bytes / seconds / (1024 * 1024))
+                    + "; recorded over " + String.format("%.3f", (lastFrameTime - firstFrameTime) / 1_000_000_000.0) + " s, "
+                    + sentFrames + " frames sent then, " + currentPeer.getNumberOfPieces() + "/" + configuration.getTotalPieces() + " pieces now held";
+            System.out.println(result);
+            logger.logInfo(result);
         }
 
-        public void sendHaveMessage(int pieceIndex) {
-
-            try {
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-
-                byte[] load = ByteBuffer.allocate(4).putInt(pieceIndex).array();
-                byte[] haveMessage = null;
-
+        private void readRecords(DataInputStream input) throws IOException {
+            while (true) {
+                long time;
                 try {
-                    haveMessage = buildPacket(5, messageTypes.getHaveIndex(), load);
-                } catch(CustomException e) {
-                    e.printStackTrace();
-                    System.exit(0);
+                    time = input.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                int peer = input.readInt();
+                byte kind = input.readByte();
+                int length = input.readInt();
+                //A recorder that died before close leaves the mapped tail zeroed; no real record is empty.
+                if (length == 0) return;
+                byte[] frame = new byte[4 + length];
+                ByteBuffer.wrap(frame).putInt(length);
+                input.readFully(frame, 4, length);
+                if (kind == TraceRecorder.CONNECT) {
+                    feeds.put(peer, new Feed(peer, ByteBuffer.wrap(frame, 4, 8).getLong()));
+                } else if (kind == TraceRecorder.SENT) {
+                    sentFrames++;
+                } else if (feeds.containsKey(peer)) {
+                    if (firstFrameTime < 0) firstFrameTime = time;
+                    lastFrameTime = time;
+                    feeds.get(peer).add(time, frame);
                 }
-                outputStream.write(haveMessage);
-                outputStream.flush();
-
-            }  catch (IOException exception) {
-                System.out.println("Unable to send have.");
             }
         }
 
-        public void sendRequestMessage(int index) {
+        private void feed(Feed feed, long started) {
             try {
-                DataOutputStream outputStream  = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                byte[] load = ByteBuffer.allocate(4).putInt(index).array();
-                byte[] requestMessage = null;
-                try {
-                    requestMessage = buildPacket(5, messageTypes.getRequestIndex(), load);
-                } catch(CustomException e) {
-                    e.printStackTrace();
-                    System.exit(0);
+                OutputStream output = new BufferedOutputStream(feed.driverSide.getOutputStream());
+                for (int i = 0; i < feed.frames.size(); i++) {
+                    long wait = maxSpeed ? 0 : started + (feed.times[i] - firstFrameTime) - System.nanoTime();
+                    if (wait > 0) {
+                        output.flush();
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                    output.write(feed.frames.get(i));
                 }
-                outputStream.write(requestMessage);
-                outputStream.flush();
+                output.flush();
+                feed.driverSide.shutdownOutput();
+            } catch (IOException | InterruptedException e) {
+                logger.logError("Peer " + currentPeerId + " stopped replaying to the loop for " + feed.peerId + ": " + e.getMessage());
+            }
+        }
 
-            }  catch (Exception e) {
-                e.printStackTrace();
+        //Whatever the handlers answer goes nowhere, but it is read so their writes never block.
+        private void drain(Feed feed) {
+            byte[] sink = new byte[64 << 10];
+            try {
+                InputStream input = feed.driverSide.getInputStream();
+                while (input.read(sink) >= 0) {
+                }
+            } catch (IOException ignored) {
             }
         }
+    }
 
-        public void sendPieceMessage(int index) {
+    public static void main(String[] args) throws IOException {
 
+        if (args[0].equals("tracker")) {
+            runTracker();
+            return;
+        }
+        if (args[0].equals("replay")) {
             try {
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                outputStream.write(getFilePieces(index, currentFilePieces[index]));
-                outputStream.flush();
+                new TraceReplay(args.length > 2 && args[2].equals("max")).run(Paths.get(args[1]));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            logStatistics();
+            System.exit(0);
+        }
+        currentPeerId = Integer.parseInt(args[0]);
+        initializeResources(String.valueOf(currentPeerId));
+        if (args.length >= 4) {
+            peerMap.put(currentPeerId, new Peer(currentPeerId, args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3])));
+        }
+        loadCurrentPeer();
+        if (configuration.getTraceFile() != null) {
+            //Kept beside the peer directory rather than in it, since the next start of this peer clears that directory.
+            Path trace = Paths.get(CommonConstants.getRootPath(), configuration.getTraceFile());
+            traceRecorder = new TraceRecorder(trace.resolveSibling(currentPeerId + "_" + trace.getFileName()),
+                    currentPeerId, currentPeer.getHasFile(), configuration.getTraceMaxBytes());
+            Runtime.getRuntime().addShutdownHook(new Thread(traceRecorder::close, "trace-close"));
+        }
 
-            }  catch (IOException exception) {
-                exception.printStackTrace();
+        if (configuration.isUdpTransport()) {
+            udpTransport = new UdpTransport(currentPeerId, currentPeer.getPort(), configuration.getUdpTargetDelay(),
+                    configuration.getUdpLossRate(), configuration.getUdpDelay());
+        }
+
+        if (configuration.hasTracker()) {
+            if (configuration.getTrackerPeer() == currentPeerId) {
+                Tracker tracker = new Tracker(configuration.getTrackerPort(), configuration.getTrackerInterval(), configuration.getTrackerNumWant());
+                Thread trackerThread = new Thread(tracker, "tracker");
+                trackerThread.setDaemon(true);
+                trackerThread.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> tracker.awaitDeparture(currentPeerId), "tracker-linger"));
+            }
+            trackerClient = new TrackerClient(configuration.getTrackerHost(), configuration.getTrackerPort());
+            if (configuration.isPeerExchange()) {
+                peerExchange = new PeerExchange();
+                Thread exchange = new Thread(peerExchange, "peer-exchange");
+                exchange.setDaemon(true);
+                exchange.start();
             }
+            new Thread(trackerClient, "tracker-client").start();
+        } else {
+            new Thread(new Client()).start();
+        }
+        new Thread(new Server()).start();
+        if (configuration.getWebSeed() != null && currentPeer.getHasFile() != 1) {
+            webSeed = new WebSeed(configuration.getWebSeed(), configuration.getWebSeedConnections());
+            Thread webSeeder = new Thread(new WebSeeder(), "web-seeder");
+            webSeeder.setDaemon(true);
+            webSeeder.start();
+        }
+        new Thread(new UnchokedPeer()).start();
+        new Thread(new OptimistcallyUnchokedPeer()).start();
+        if (configuration.getHaveFlushInterval() > 0) {
+            Thread haveFlusher = new Thread(new HaveFlusher(), "have-flusher");
+            haveFlusher.setDaemon(true);
+            haveFlusher.start();
         }
+        if (configuration.getStreamOutput() != null) {
+            streamConsumer = new Thread(new StreamConsumer(), "stream-consumer");
+            streamConsumer.start();
+        }
+        Tunables.start();
 
-        public void sendInterestedMessage() {
+    }
+    //Applies Configuration.TUNABLES to the running peer. Edits to Common.cfg arrive through a WatchService on its directory,
+    //and the same keys are String attributes of the peerProcess:type=Tunables MBean, next to a reload operation. Changes
+    //are validated on a copy of the configuration first, so a bad value is logged and the peer keeps what it had.
+    private static class Tunables implements DynamicMBean, Runnable {
+
+        private final Path file = Paths.get(CommonConstants.getCommonConfigFileName()).toAbsolutePath();
+        private Configuration lastRead = configuration.copy();
+
+        static void start() {
+            Tunables tunables = new Tunables();
             try {
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                byte[] interestedMessage;
-                interestedMessage = buildPacket(1, messageTypes.getInterestedIndex(), null);
-                outputStream.write(interestedMessage);
-                outputStream.flush();
-            } catch(CustomException | IOException e) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(tunables, new ObjectName("peerProcess:type=Tunables,peer=" + currentPeerId));
+            } catch (JMException e) {
                 e.printStackTrace();
-                System.exit(0);
             }
+            Thread watcher = new Thread(tunables, "tunables-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
         }
 
-        public void sendBitFieldMsg() {
-            try{
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                int[] bitField = currentPeer.getBitField();
-                int totalLength = currentPeer.getBitField().length;
-                int newMessageLength = (4 * totalLength)+ 1;
-                byte[] load = new byte[newMessageLength - 1];
-                int index = 0;
-                for (int j=0;j < totalLength;j++) {
-                    int ind = bitField[j];
-                    byte[] numberByteArray = ByteBuffer.allocate(4).putInt(ind).array();
-                    int checkLength = numberByteArray.length;
-                    for (int k=0;k < checkLength;k++) {
-                        byte oneByte = numberByteArray[k];
-                        load[index] = oneByte;
-                        index = index + 1;
+        @Override
+        public void run() {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    if (changed) {
+                        reload();
                     }
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-                byte[] bitMessage = buildPacket(newMessageLength, messageTypes.getBitFieldIndex(), load);
+        //Only keys whose value in the file moved since the last good read are applied, so a value set over JMX stays
+        //until the file itself changes that key.
+        synchronized void reload() {
+            Configuration read = new Configuration();
+            Map<String, String> changes = new LinkedHashMap<>();
+            try {
+                readConfiguration(read, file.toString());
+                for (String key : Configuration.TUNABLES) {
+                    if (!read.getTunable(key).equals(lastRead.getTunable(key))) {
+                        changes.put(key, read.getTunable(key));
+                    }
+                }
+                apply(changes, file.getFileName().toString());
+                lastRead = read;
+            } catch (IOException e) {
+                logger.logError("Peer " + currentPeerId + " ignored the edit to " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
 
-                outputStream.write(bitMessage);
-                outputStream.flush();
-            } catch(IOException | CustomException exception){
-                exception.printStackTrace();
-                System.exit(0);
+        synchronized void apply(Map<String, String> changes, String source) throws IOException {
+            Configuration candidate = configuration.copy();
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                try {
+                    candidate.setProperty(change.getKey(), change.getValue());
+                } catch (NumberFormatException e) {
+                    throw new IOException(change.getKey() + " must be a number, not " + change.getValue());
+                }
+            }
+            candidate.validate();
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                configuration.setProperty(change.getKey(), change.getValue());
+                logger.logInfo("Peer " + currentPeerId + " set " + change.getKey() + " to " + change.getValue() + " from " + source + ".");
+            }
+            //The unchoke loops, request timer, tracker client and web seeder read their settings each round; these two hold copies.
+            if (changes.containsKey("PipelineMinDepth") || changes.containsKey("PipelineMaxDepth")) {
+                for (PeerSocket peerSocket : socketMap.values()) {
+                    peerSocket.setPipelineDepth(configuration.getPipelineMinDepth(), configuration.getPipelineMaxDepth());
+                }
+            }
+            if (changes.containsKey("PieceCacheSize") || changes.containsKey("ReadAheadPieces")) {
+                pieceCache.setLimits(configuration.getPieceCacheSize(), configuration.getReadAheadPieces());
             }
         }
 
-        public void sendNotInterestedMessage() {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (!Configuration.TUNABLES.contains(attribute)) throw new AttributeNotFoundException(attribute);
+            return configuration.getTunable(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException {
+            if (!Configuration.TUNABLES.contains(attribute.getName())) throw new AttributeNotFoundException(attribute.getName());
             try {
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                byte[] iamNotInterestedMessage = buildPacket(1, messageTypes.getNotInterestedIndex(), null);
+                apply(Collections.singletonMap(attribute.getName(), String.valueOf(attribute.getValue())), "JMX");
+            } catch (IOException e) {
+                throw new InvalidAttributeValueException(e.getMessage());
+            }
+        }
 
-                outputStream.write(iamNotInterestedMessage);
-                outputStream.flush();
-            } catch (IOException | CustomException e) {
-                e.printStackTrace();
-                System.exit(0);
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList values = new AttributeList();
+            for (String attribute : attributes) {
+                if (Configuration.TUNABLES.contains(attribute)) {
+                    values.add(new Attribute(attribute, configuration.getTunable(attribute)));
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            AttributeList applied = new AttributeList();
+            for (Attribute attribute : attributes.asList()) {
+                try {
+                    setAttribute(attribute);
+                    applied.add(new Attribute(attribute.getName(), configuration.getTunable(attribute.getName())));
+                } catch (JMException e) {
+                    logger.logError("Peer " + currentPeerId + " ignored " + attribute.getName() + " over JMX: " + e.getMessage());
+                }
             }
+            return applied;
         }
 
-        public void sendChokeMessage() {
-            try {
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                byte[] chokeMessage = buildPacket(1, messageTypes.getChokeIndex(), null);
-
-                outputStream.write(chokeMessage);
-                outputStream.flush();
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (!actionName.equals("reload")) throw new ReflectionException(new NoSuchMethodException(actionName));
+            reload();
+            return null;
+        }
 
-            } catch (IOException | CustomException e) {
-            e.printStackTrace();
-            System.exit(0);
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[Configuration.TUNABLES.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = new MBeanAttributeInfo(Configuration.TUNABLES.get(i), String.class.getName(),
+                        "Common.cfg setting " + Configuration.TUNABLES.get(i), true, true, false);
             }
+            MBeanOperationInfo reload = new MBeanOperationInfo("reload", "Re-reads " + CommonConstants.getCommonConfigFileName(),
+                    new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+            return new MBeanInfo(getClass().getName(), "Tunables of peer " + currentPeerId, attributes, null,
+                    new MBeanOperationInfo[]{reload}, null);
         }
+    }
 
-        public void sendUnChokeMessage() {
-
-            try {
-                DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                outputStream.flush();
-                byte[] unchokeMessage = buildPacket(1, messageTypes.getUnchokeIndex(), null);
+    //Hides the seeder's bitfield and hands each peer one piece at a time, so each piece leaves the seeder about once.
+    private static class SuperSeeder {
+        private final int[] availability;
+        private final int[] timesOffered;
+        private final IntIntMap offeredPiece = new IntIntMap(-1);
+        private final IntList waitingPeers = new IntList();
+        private int piecesSpread = 0;
+        private boolean active = true;
+
+        public SuperSeeder(int totalPieces) {
+            this.availability = new int[totalPieces];
+            this.timesOffered = new int[totalPieces];
+        }
 
-                outputStream.write(unchokeMessage);
-                outputStream.flush();
+        public synchronized boolean isActive() {
+            return active;
+        }
 
-            } catch (IOException | CustomException e) {
-                e.printStackTrace();
-                System.exit(0);
+        public synchronized void onConnect(PeerSocket peerSocket) {
+            if (peerSocket.supports(Capabilities.FAST)) {
+                peerSocket.sendFlagMessage(messageTypes.getHaveNoneIndex());
+            } else {
+                peerSocket.sendBitFieldMsg(new AtomicBitSet(availability.length));
             }
+            //The reader starts before the socket is registered, so the new connection is passed in rather than looked up.
+            offerNextPiece(peerSocket.getPeerId(), peerSocket);
         }
 
-        private  void writeFile(String filePath, byte[] newFile){
-            try {
-                BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(filePath));
-                outputStream.write(newFile);
-                outputStream.close();
-            } catch (Exception e){
-                e.printStackTrace();
+        public synchronized void onBitfield(int peerId, AtomicBitSet bitfield) {
+            for (int i = 0; i < bitfield.size() && i < availability.length; i++) {
+                if (bitfield.get(i)) markAvailable(i);
+            }
+            if (active && offeredPiece.containsKey(peerId) && bitfield.get(offeredPiece.get(peerId))) {
+                offerNextPiece(peerId);
             }
+            finishIfSpread();
         }
 
-        public void downloadCompleted(int fileIndex) {
-            int totalNumberOfPieces = 0;
-            int[] currentNodeBitFields = currentPeer.getBitField();
-            int checkLength = currentNodeBitFields.length;
-            int k = 0;
-            while (k<checkLength) {
-                if (currentNodeBitFields[k] == 1) {
-                    totalNumberOfPieces = totalNumberOfPieces + 1;
+        public synchronized void onHave(int peerId, int pieceIndex) {
+            markAvailable(pieceIndex);
+            if (!active) return;
+            //A piece counts as passed on once somebody other than the peer we gave it to reports it.
+            waitingPeers.clear();
+            for (int slot = 0; slot < offeredPiece.capacity(); slot++) {
+                if (offeredPiece.isUsed(slot) && offeredPiece.valueAt(slot) == pieceIndex && offeredPiece.keyAt(slot) != peerId) {
+                    waitingPeers.add(offeredPiece.keyAt(slot));
                 }
-                k = k + 1;
             }
+            for (int i = 0; i < waitingPeers.size(); i++) {
+                offerNextPiece(waitingPeers.get(i));
+            }
+            finishIfSpread();
+        }
 
+        //Leechers do not announce pieces back to the peer they got them from, so an upload counts as a copy.
+        public synchronized void onPieceServed(int peerId, int pieceIndex) {
+            markAvailable(pieceIndex);
+            if (!active) return;
+            if (offeredPiece.get(peerId) == pieceIndex && noOneElseNeeds(peerId, pieceIndex)) {
+                offerNextPiece(peerId);
+            }
+            finishIfSpread();
+        }
 
-            if (totalNumberOfPieces == checkLength) {
-                logger.logInfo("Peer " + currentPeer.getPeerId() + " has downloaded the complete file.");
-                int index = 0;
-                int fileSize = configuration.getFileSize();
-                byte[] newFile = new byte[fileSize];
-                int checkLength1 = currentFilePieces.length;
-                for (int i=0;i < checkLength1;i++) {
-                    int checkLength2 =  currentFilePieces[i].length;
-                    for (int j=0; j < checkLength2;j++) {
-                        byte currentByte = currentFilePieces[i][j];
-                        newFile[index] = currentByte;
-                        index = index + 1;
-                    }
-                }
-                try {
-                    String finalFilePath = CommonConstants.getRootPath() + "/" + currentPeerId + "/" + (theFileName);
-                    writeFile(finalFilePath, newFile);
-                    currentPeer.downloadComplete();
-                    peersCompleted += 1;
+        private void markAvailable(int pieceIndex) {
+            if (availability[pieceIndex]++ == 0) {
+                piecesSpread++;
+            }
+        }
 
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
+        private boolean noOneElseNeeds(int peerId, int pieceIndex) {
+            for (PeerSocket otherSocket : socketMap.values()) {
+                AtomicBitSet bitfield = peerMap.get(otherSocket.getPeerId()).getBitField();
+                if (otherSocket.getPeerId() != peerId && (bitfield == null || !bitfield.get(pieceIndex))) {
+                    return false;
                 }
             }
-            else {
-                int i = 0;
-                int resultChunkSize = configuration.getPieceSize();
-                byte[] newByteArray = new byte[resultChunkSize];
-                for (int j=0; j < currentFilePieces[fileIndex].length;j++) {
-                    byte currByte = currentFilePieces[fileIndex][j];
-                    newByteArray[i++] = currByte;
-                }
+            return true;
+        }
 
-                try {
-                    String finalFilePath = CommonConstants.getRootPath() + "/" + currentPeerId + "/" + ("piece_" + theFileName + "_" + fileIndex);
-                    writeFile(finalFilePath, newByteArray);
+        private void offerNextPiece(int peerId) {
+            offerNextPiece(peerId, socketMap.get(peerId));
+        }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
+        private void offerNextPiece(int peerId, PeerSocket peerSocket) {
+            AtomicBitSet peerBitfield = peerMap.get(peerId).getBitField();
+            int best = -1;
+            for (int i = 0; i < availability.length; i++) {
+                if (peerBitfield != null && peerBitfield.get(i)) continue;
+                if (best == -1 || availability[i] < availability[best]
+                        || (availability[i] == availability[best] && timesOffered[i] < timesOffered[best])) {
+                    best = i;
                 }
             }
+            if (best == -1 || peerSocket == null) {
+                offeredPiece.remove(peerId);
+                return;
+            }
+            offeredPiece.put(peerId, best);
+            timesOffered[best]++;
+            peerSocket.sendHaveMessage(best);
+            logger.logInfo("Peer " + currentPeerId + " super-seeds piece " + best + " to " + peerId);
         }
 
+        //Once every piece has reached some leecher the swarm can take over, so the real bitfield is revealed.
+        private void finishIfSpread() {
+            if (!active || piecesSpread < availability.length) return;
+            active = false;
+            offeredPiece.clear();
+            logger.logInfo("Peer " + currentPeerId + " leaves super-seeding, every piece has been passed on");
+            for (PeerSocket peerSocket : socketMap.values()) {
+                peerSocket.sendAvailabilityMessage();
+            }
+        }
     }
 
-    private static class Server implements Runnable {
+    private static class HaveFlusher implements Runnable {
 
         @Override
         public void run() {
-            try {
-                //Wait for new connections from all peers initialized after itself.
-                ServerSocket server = new ServerSocket(currentPeer.getPort());
-                byte[] handshakePacket = new byte[32];
-                boolean newPeers = false;
-                for(Integer peerID : peerMap.keySet()){
-                    Peer tempPeer = peerMap.get(peerID);
-                    if(newPeers){
-                        Socket socket = server.accept();
-                        ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                        inputStream.readFully(handshakePacket);
-                        logger.logInfo("Peer " + currentPeerId +" receives " + Utils.extractString(handshakePacket, 0, 31));
-                        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                        handshakePacket = Utils.createHandshakePacket(currentPeerId);
-                        outputStream.write(handshakePacket);
-                        outputStream.flush();
-
-                        socketMap.put(peerID, new PeerSocket(socket, peerID));
-                        logger.logInfo("Peer" + currentPeerId + " is connected from Peer" + peerID);
-                    }
-
-                    if (currentPeerId == peerID) newPeers = true;
+            while (!isSwarmComplete()) {
+                try {
+                    Thread.sleep(Math.max(1, configuration.getHaveFlushInterval()));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (PeerSocket peerSocket : socketMap.values()) {
+                    peerSocket.flushHaveMessages();
                 }
-                //Completes after all TCP connections have been created.
-                server.close();
-
-            } catch (Exception exception) {
-                exception.printStackTrace();
             }
         }
     }
 
-    private static class Client implements Runnable {
+    //Falls back to the web seed for pieces that fewer than WebSeedMinAvailability unchoking neighbours can supply, which
+    //covers a seed that is offline as well as one that has no upload slot for this peer. Every half second the missing
+    //pieces are scanned; those fetched over HTTP are claimed in requestedPieces so no neighbour is asked for them too.
+    private static class WebSeeder implements Runnable {
+
+        private final ExecutorService workers = Executors.newFixedThreadPool(configuration.getWebSeedConnections(), runnable -> {
+            Thread worker = new Thread(runnable, "web-seed");
+            worker.setDaemon(true);
+            return worker;
+        });
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final ArrayList<AtomicBitSet> sources = new ArrayList<>();
 
         @Override
         public void run() {
-            try {
-                for (Integer neighborPeerId : peerMap.keySet()) {
-                    if (neighborPeerId == currentPeerId) break;
-                    Peer neighborPeer = peerMap.get(neighborPeerId);
-                    Socket socket = new Socket(neighborPeer.getHostName(), neighborPeer.getPort());
-                    logger.logInfo("Peer " + currentPeerId + " makes a connection to Peer "+neighborPeerId);
-                    System.out.println("Client: " + neighborPeerId + " Socket created. Connecting to Server: " + neighborPeer.getHostName()
-                            + " with " + neighborPeer.getPort());
-                    ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-                    byte[] handshakePacket = Utils.createHandshakePacket(currentPeerId);
-                    outputStream.write(handshakePacket);
-                    outputStream.flush();
-                    logger.logInfo("Peer "+currentPeerId+ "sends handshake to "+neighborPeerId);
-                    System.out.println("Client: " + neighborPeerId + " Handshake packet sent to Connecting to Server: "
-                            + neighborPeer.getHostName() + " with " + neighborPeer.getPort());
-
-                    ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                    inputStream.readFully(handshakePacket);
-                    String receivedHeader = Utils.extractString(handshakePacket, 0, 17);
-                    String receivedPeerId = Utils.extractString(handshakePacket, 28, 31);
-
-                    //Authenticating handshake
-                    if(receivedHeader.equals(CommonConstants.getHandShakeHeader()) && Integer.parseInt(receivedPeerId) == neighborPeerId){
-                        socketMap.put(neighborPeerId, new PeerSocket(socket, neighborPeerId));
-                        logger.logInfo("Peer " + currentPeerId +" receives " + Utils.extractString(handshakePacket, 0, 31));
-                        System.out.println("Client: " + neighborPeerId + " Handshake packet received from Server: " + neighborPeer.getHostName()
-                                + " with " + neighborPeer.getPort() + " Packet = " + Utils.extractString(handshakePacket, 0, 31) + " appended to "
-                                + " Updated connections " + socketMap.size() + "/" + (peerMap.size() - 1)
-                                + " connections till now");
-                    }else{
-                        socket.close();
-                    }
+            while (currentPeer.getHasFile() != 1 && !isSwarmComplete()) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    break;
                 }
-
+                schedule();
             }
-            catch (IOException exception) {
+            workers.shutdown();
+        }
 
-                exception.printStackTrace();
+        private void schedule() {
+            //Twice the connection count keeps every connection busy without claiming pieces far ahead of the fetches.
+            int budget = 2 * configuration.getWebSeedConnections() - inFlight.get();
+            if (budget <= 0) return;
+            sources.clear();
+            for (PeerSocket peerSocket : socketMap.values()) {
+                Peer peer = peerMap.get(peerSocket.getPeerId());
+                if (!peerSocket.isChokedByPeer() && peer != null && peer.getBitField() != null) sources.add(peer.getBitField());
+            }
+            AtomicBitSet have = currentPeer.getBitField();
+            for (int i = 0; i < have.size() && budget > 0; i++) {
+                if (have.get(i) || requestedPieces.get(i)) continue;
+                int available = 0;
+                for (int s = 0; s < sources.size() && available < configuration.getWebSeedMinAvailability(); s++) {
+                    if (sources.get(s).get(i)) available++;
+                }
+                if (available >= configuration.getWebSeedMinAvailability() || !requestedPieces.set(i)) continue;
+                final int pieceIndex = i;
+                inFlight.incrementAndGet();
+                budget--;
+                workers.execute(() -> fetch(pieceIndex));
+            }
+        }
 
+        private void fetch(int pieceIndex) {
+            int pieceLength = configuration.getPieceLength(pieceIndex);
+            BufferArena.Slab slab = null;
+            try {
+                memoryGovernor.reserve(pieceLength);
+                try {
+                    slab = bufferArena.acquire(pieceLength);
+                    long started = System.nanoTime();
+                    webSeed.fetch(configuration.getPieceOffset(pieceIndex), slab.buffer());
+                    slab.buffer().flip();
+                    boolean newPiece = storePiece(pieceIndex, slab);
+                    slab = null;
+                    FlightEvents.pieceCompleted(-1, pieceIndex, pieceLength, System.nanoTime() - started, !newPiece);
+                    if (newPiece) {
+                        logger.logInfo("Peer " + currentPeerId + " has downloaded the piece " + pieceIndex + " from the web seed.");
+                        announcePiece(pieceIndex, null);
+                    }
+                } finally {
+                    if (slab != null) slab.release();
+                    memoryGovernor.release(pieceLength);
+                }
+            } catch (IOException e) {
+                logger.logError("Peer " + currentPeerId + " could not fetch piece " + pieceIndex + " from the web seed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                requestedPieces.clear(pieceIndex);
+                inFlight.decrementAndGet();
             }
         }
     }
 
-    public static void initializeResources(String peerId) throws IOException {
-        messageTypes = new MessageTypes();//for messages
-        configuration = new Configuration();//common cfg data
-        peerMap = new LinkedHashMap<>();//peer info cfg hash map
-        socketMap = new ConcurrentHashMap<>();
-        createDirectory(peerId);
-        getTorrentDetails();
-        readCommonConfig();
-        configuration.printConfigDetails();
-        readPeerConfig();
-        configuration.printPeerDetails();
-        logger = new MyLogger(peerId);
-        socketMap = new ConcurrentHashMap<>();
-    }
+    //Erasure mode: a peer holding the whole file answers requests for repair pieces, numbered on from the last source
+    //piece, and a leecher whose pipeline finds nothing unrequested asks for repairs of its unfinished groups before it
+    //duplicates requests in endgame. Once any k pieces of a group are here the missing sources are decoded, one group per
+    //core at a time, and stored and announced like downloaded pieces; whatever was still in flight for them is a duplicate.
+    private static class ErasureRepair {
+
+        //Every leecher in an unfinished group asks for the same few repairs, so the latest ones encoded are kept.
+        private static final int GENERATED_CACHE = 256;
+
+        private final ReedSolomon code;
+        private final int groupSize;
+        private final int repairsPerGroup;
+        private final int groups;
+        private final int totalPieces;
+        private final int pieceSize;
+        private final AtomicBitSet repairsRequested;
+        private final ConcurrentHashMap<Integer, byte[]> repairsHeld = new ConcurrentHashMap<>();
+        private final AtomicBitSet decoding;
+        private final ExecutorService decoders;
+        private final LinkedHashMap<Integer, byte[]> generated = new LinkedHashMap<>(16, 0.75f, true);
+        private final AtomicLong repairsGenerated = new AtomicLong();
+        private final AtomicLong repairsServed = new AtomicLong();
+        private final AtomicLong repairsReceived = new AtomicLong();
+        private final AtomicLong repairsDropped = new AtomicLong();
+        private final AtomicLong repairsRefused = new AtomicLong();
+        private final AtomicLong decodesDeferred = new AtomicLong();
+        private final AtomicLong groupsDecoded = new AtomicLong();
+        private final AtomicLong piecesRecovered = new AtomicLong();
+        private final AtomicLong decodeNanos = new AtomicLong();
+
+        ErasureRepair(int groupSize, int repairsPerGroup) {
+            this.code = new ReedSolomon(groupSize);
+            this.groupSize = groupSize;
+            this.repairsPerGroup = repairsPerGroup;
+            this.totalPieces = configuration.getTotalPieces();
+            this.pieceSize = (int) configuration.getPieceSize();
+            this.groups = (totalPieces + groupSize - 1) / groupSize;
+            this.repairsRequested = new AtomicBitSet(groups * repairsPerGroup);
+            this.decoding = new AtomicBitSet(groups);
+            this.decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread decoder = new Thread(runnable, "erasure-decoder");
+                decoder.setDaemon(true);
+                return decoder;
+            });
+        }
 
-    public static void readPeerConfig() throws IOException {
-        ArrayList<String> aList = parseFile(CommonConstants.getPeerInfoFileName());
-        for(String line : aList){
-            String[] words = line.split(" ");
-            peerMap.put(Integer.valueOf(words[0]), new Peer(Integer.parseInt(words[0]), words[1], Integer.valueOf(words[2]), Integer.parseInt(words[3])));
+        boolean isRepairIndex(int index) {
+            return index >= totalPieces && index < totalPieces + groups * repairsPerGroup;
         }
-    }
 
-    public static void readCommonConfig() throws IOException {
-        ArrayList<String> aList = parseFile(CommonConstants.getCommonConfigFileName());
-        configuration.numberOfPreferredNeighbors = Integer.parseInt(aList.get(0).split(" ")[1]);
-        configuration.unchokingInterval = Integer.parseInt(aList.get(1).split(" ")[1]);
-        configuration.optimisticUnchokingInterval = Integer.parseInt(aList.get(2).split(" ")[1]);
-        configuration.fileName = aList.get(3).split(" ")[1];
-        configuration.fileSize = Integer.parseInt(aList.get(4).split(" ")[1]);
-        configuration.pieceSize = Integer.parseInt(aList.get(5).split(" ")[1]);
-    }
+        private int sourcesIn(int group) {
+            return Math.min(groupSize, totalPieces - group * groupSize);
+        }
 
-    public static ArrayList<String> parseFile(String fileName) throws IOException {
-        ArrayList<String> aList = new ArrayList<>();
-        BufferedReader bReader = new BufferedReader(new FileReader(fileName));
-        String line = bReader.readLine();
-        while(line != null){
-            aList.add(line);
-            line = bReader.readLine();
+        private int heldSources(int group) {
+            int held = 0;
+            for (int i = group * groupSize; i < group * groupSize + sourcesIn(group); i++) {
+                if (currentPeer.hasPiece(i)) held++;
+            }
+            return held;
         }
-        bReader.close();
-        return aList;
-    }
 
-    public static void createDirectory(String peerId) throws IOException {
+        private int repairsFor(int group, boolean countRequested) {
+            int count = 0;
+            for (int slot = group * repairsPerGroup; slot < (group + 1) * repairsPerGroup; slot++) {
+                if (repairsHeld.containsKey(slot) || countRequested && repairsRequested.get(slot)) count++;
+            }
+            return count;
+        }
 
-        Path path = Paths.get(".//"+peerId);
-        if(Files.exists(path)){
-            clearDirectory(path);
-            currentNodeDir = path.toFile();
-        }else{
-            currentNodeDir = Files.createDirectory(path).toFile();
+        //Claims a repair piece of a group that held, received and requested pieces cannot finish yet; -1 when none can help.
+        int pickRepair() {
+            for (int group = 0; group < groups; group++) {
+                if (decoding.get(group)) continue;
+                int sources = sourcesIn(group);
+                int held = heldSources(group);
+                if (held == sources || held + repairsFor(group, true) >= sources) continue;
+                for (int slot = group * repairsPerGroup; slot < (group + 1) * repairsPerGroup; slot++) {
+                    if (!repairsHeld.containsKey(slot) && repairsRequested.set(slot)) return totalPieces + slot;
+                }
+            }
+            return -1;
         }
-    }
 
-    private static void clearDirectory(Path path) throws IOException {
-        //Deleting every file.
-        String fileName = CommonConstants.getTheFileName();
-        Stream<Path> files = Files.list(path);
-        for(Object obj : files.toArray()){
-            Path file = (Path) obj;
-            if(!file.getFileName().toString().equals(fileName)){
-                Files.deleteIfExists(file);
+        void releaseRepair(int index) {
+            repairsRequested.clear(index - totalPieces);
+        }
+
+        void onRepairPiece(int index, ByteBuffer data) {
+            int slot = index - totalPieces;
+            int group = slot / repairsPerGroup;
+            if (decoding.get(group) || heldSources(group) == sourcesIn(group)) return;
+            //Held repairs count against the memory budget; one that does not fit is dropped and the group is left to its sources.
+            if (!memoryGovernor.tryReserve(pieceSize)) {
+                repairsDropped.incrementAndGet();
+                return;
+            }
+            byte[] repair = new byte[data.remaining()];
+            data.duplicate().get(repair);
+            if (repairsHeld.putIfAbsent(slot, repair) == null) {
+                repairsReceived.incrementAndGet();
+            } else {
+                memoryGovernor.release(pieceSize);
             }
+            tryDecode(group);
         }
-        files.close();
-    }
 
-    public static void writeFilePieces() throws IOException {
-        String filePath = CommonConstants.getRootPath()+ currentPeerId + "/" + CommonConstants.getTheFileName();
-        BufferedInputStream file = new BufferedInputStream(new FileInputStream(filePath));
-        int fileSize = configuration.getFileSize();
-        int pieceSize = configuration.getPieceSize();
-        byte[] byteArray = new byte[fileSize];
-        file.read(byteArray);
-        file.close();
-        int pieceIndex = 0, cnt = 0;
-        while(pieceIndex < fileSize) {
-            if (pieceIndex + pieceSize <= fileSize)
-                currentFilePieces[cnt] = Utils.returnArrayCopy(byteArray, pieceIndex, pieceIndex + pieceSize);
-            else
-                currentFilePieces[cnt] = Utils.returnArrayCopy(byteArray, pieceIndex, fileSize);
-            currentPeer.incrementNumOfPieces();
-            pieceIndex += pieceSize;
-            cnt++;
+        void onPieceStored(int pieceIndex) {
+            tryDecode(pieceIndex / groupSize);
         }
-    }
 
-    public static void divideIntoPieces() throws IOException {
-        int pieceSize = configuration.getPieceSize();
-        int fileSize = configuration.getFileSize();
-        int noOfPieces = (int) Math.ceil((double)fileSize / pieceSize);
-        currentFilePieces = new byte[noOfPieces][];
+        private void tryDecode(int group) {
+            int held = heldSources(group);
+            if (held == sourcesIn(group)) {
+                dropRepairs(group);
+            } else if (held + repairsFor(group, false) >= sourcesIn(group) && decoding.set(group)) {
+                decoders.execute(() -> decode(group));
+            }
+        }
 
-        int[] pieceMarker = new int[noOfPieces];
-        Arrays.fill(pieceMarker, 1);
+        private void dropRepairs(int group) {
+            for (int slot = group * repairsPerGroup; slot < (group + 1) * repairsPerGroup; slot++) {
+                if (repairsHeld.remove(slot) != null) {
+                    memoryGovernor.release(pieceSize);
+                }
+            }
+        }
 
-        if(currentPeer.getHasFile() == 1){
-            peersCompleted++;
-            Arrays.fill(pieceMarker, 1);
-            currentPeer.setBitfield(pieceMarker);
-            writeFilePieces();
-        }else{
-            Arrays.fill(pieceMarker, 0);
-            currentPeer.setBitfield(pieceMarker);
+        private void decode(int group) {
+            long started = System.nanoTime();
+            int sources = sourcesIn(group);
+            int first = group * groupSize;
+            int[] rows = new int[sources];
+            byte[][] data = new byte[sources][];
+            int[] wanted = new int[sources];
+            int rowCount = 0;
+            int wantedCount = 0;
+            //The sources read back and the pieces recovered from them all live on the heap until slabs take the pieces over,
+            //so a group waits for budget room for all of them; until then it carries on downloading like any other.
+            long temporary = (long) sources * pieceSize;
+            if (!memoryGovernor.tryReserve(temporary)) {
+                decodesDeferred.incrementAndGet();
+                decoding.clear(group);
+                return;
+            }
+            try {
+                for (int i = 0; i < sources; i++) {
+                    if (!currentPeer.hasPiece(first + i)) {
+                        wanted[wantedCount++] = i;
+                        continue;
+                    }
+                    byte[] piece = new byte[pieceSize];
+                    diskWriter.readPiece(first + i, ByteBuffer.wrap(piece, 0, configuration.getPieceLength(first + i)));
+                    rows[rowCount] = i;
+                    data[rowCount++] = piece;
+                }
+                for (int j = 0; j < repairsPerGroup && rowCount < sources; j++) {
+                    byte[] repair = repairsHeld.get(group * repairsPerGroup + j);
+                    if (repair != null) {
+                        rows[rowCount] = code.repairRow(j);
+                        data[rowCount++] = repair;
+                    }
+                }
+                if (rowCount < sources) {
+                    decoding.clear(group);
+                    return;
+                }
+                byte[][] recovered = code.decode(sources, rows, data, Arrays.copyOf(wanted, wantedCount), pieceSize);
+                Arrays.fill(data, null);
+                memoryGovernor.release((long) (sources - wantedCount) * pieceSize);
+                temporary = (long) wantedCount * pieceSize;
+                for (int w = 0; w < wantedCount; w++) {
+                    int pieceIndex = first + wanted[w];
+                    int pieceLength = configuration.getPieceLength(pieceIndex);
+                    BufferArena.Slab slab = bufferArena.acquire(pieceLength);
+                    slab.buffer().put(recovered[w], 0, pieceLength).flip();
+                    //The arena accounts for the slab, so the recovered copy's share of the reservation goes back.
+                    recovered[w] = null;
+                    memoryGovernor.release(pieceSize);
+                    temporary -= pieceSize;
+                    if (storePiece(pieceIndex, slab)) {
+                        piecesRecovered.incrementAndGet();
+                        logger.logInfo("Peer " + currentPeerId + " has recovered the piece " + pieceIndex + " from the repair pieces of group " + group + ".");
+                        announcePiece(pieceIndex, null);
+                    }
+                }
+                groupsDecoded.incrementAndGet();
+                dropRepairs(group);
+            } catch (IOException e) {
+                e.printStackTrace();
+                decoding.clear(group);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                decoding.clear(group);
+            } finally {
+                memoryGovernor.release(temporary);
+                decodeNanos.addAndGet(System.nanoTime() - started);
+            }
         }
-    }
 
-    public static void getTorrentDetails() {
-        theFileName = CommonConstants.getTheFileName();
+        //Encoding reads the whole group onto the heap, and a repair kept for the next leecher stays there, so both are
+        //reserved from the memory budget first; false, with nothing written, when it has no room and the request is refused.
+        boolean readRepair(int index, ByteBuffer destination) throws IOException {
+            int slot = index - totalPieces;
+            byte[] repair;
+            synchronized (generated) {
+                repair = generated.get(slot);
+            }
+            if (repair == null) {
+                int group = slot / repairsPerGroup;
+                long temporary = (long) (sourcesIn(group) + 1) * pieceSize;
+                if (!memoryGovernor.tryReserve(temporary)) {
+                    repairsRefused.incrementAndGet();
+                    return false;
+                }
+                try {
+                    byte[][] sources = new byte[sourcesIn(group)][];
+                    for (int i = 0; i < sources.length; i++) {
+                        int pieceIndex = group * groupSize + i;
+                        sources[i] = new byte[pieceSize];
+                        diskWriter.readPiece(pieceIndex, ByteBuffer.wrap(sources[i], 0, configuration.getPieceLength(pieceIndex)));
+                    }
+                    repair = new byte[pieceSize];
+                    code.encode(slot % repairsPerGroup, sources, repair);
+                    repairsGenerated.incrementAndGet();
+                    synchronized (generated) {
+                        if (generated.putIfAbsent(slot, repair) == null) {
+                            //The cached copy keeps one piece of the reservation until it is evicted.
+                            temporary -= pieceSize;
+                            if (generated.size() > GENERATED_CACHE) {
+                                generated.remove(generated.keySet().iterator().next());
+                                memoryGovernor.release(pieceSize);
+                            }
+                        }
+                    }
+                } finally {
+                    memoryGovernor.release(temporary);
+                }
+            }
+            destination.put(repair);
+            repairsServed.incrementAndGet();
+            return true;
+        }
+
+        String getStatistics() {
+            return repairsGenerated.get() + " repairs encoded, " + repairsServed.get() + " served, " + repairsRefused.get() + " refused, "
+                    + repairsReceived.get() + " received, " + repairsDropped.get() + " dropped, " + groupsDecoded.get() + " groups decoded, "
+                    + decodesDeferred.get() + " deferred, " + piecesRecovered.get() + " pieces recovered in " + decodeNanos.get() / 1_000_000 + " ms";
+        }
     }
-    public static void main(String[] args) throws IOException {
 
-        currentPeerId = Integer.parseInt(args[0]);
-        initializeResources(String.valueOf(currentPeerId));
-        currentPeer = peerMap.get(currentPeerId);
-        divideIntoPieces();
+    //Repair pieces are always a full piece long.
+    static int requestLength(int pieceIndex) {
+        return pieceIndex < configuration.getTotalPieces() ? configuration.getPieceLength(pieceIndex) : (int) configuration.getPieceSize();
+    }
 
-        new Thread(new Client()).start();
-        new Thread(new Server()).start();
-        new Thread(new UnchokedPeer()).start();
-        new Thread(new OptimistcallyUnchokedPeer()).start();
+    //Copies the file to StreamOutput in order through the blocking read API, starting before the download finishes.
+    private static class StreamConsumer implements Runnable {
 
+        @Override
+        public void run() {
+            long started = System.nanoTime();
+            boolean first = true;
+            try (FileChannel output = FileChannel.open(Paths.get(CommonConstants.getRootPath(), String.valueOf(currentPeerId), configuration.getStreamOutput()),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(configuration.getPieceSize(), 1 << 20));
+                long position = 0;
+                int read;
+                while ((read = pieceStream.read(position, buffer)) > 0) {
+                    if (first) {
+                        first = false;
+                        logger.logInfo("Peer " + currentPeerId + " streamed its first bytes after "
+                                + (System.nanoTime() - started) / 1_000_000 + " ms");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                    buffer.clear();
+                    position += read;
+                }
+                logger.logInfo("Peer " + currentPeerId + " streamed " + position + " bytes to " + configuration.getStreamOutput());
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
     }
-    static class CustomComparator implements Comparator<Integer> {
-        Map<Integer, Double> map;
-        public CustomComparator(Map<Integer, Double> map) {
-            this.map = map;
+
+    //Scratch lists are owned by each choker thread and reused every round.
+    private static void getConnectionIDs(IntList connectionIDs) {
+        connectionIDs.clear();
+        for (PeerSocket peerSocket : socketMap.values()) {
+            connectionIDs.add(peerSocket.getPeerId());
         }
-        public int compare(Integer a, Integer b) {
-            if (map.get(a) >= map.get(b))return -1;
-            else return 1;
+    }
+
+    private static void getInterestedConnections(IntList connectionsList, IntList interestedPeers) {
+        interestedPeers.clear();
+        for (int i = 0; i < connectionsList.size(); i++) {
+            int connection = connectionsList.get(i);
+            PeerSocket peerSocket = socketMap.get(connection);
+            if (peerSocket != null && peerSocket.isInterested()) {
+                interestedPeers.add(connection);
+            }
         }
     }
 
     private static class OptimistcallyUnchokedPeer implements Runnable {
 
-        public List<Integer> getConnectionIDs() {
-            List<Integer> connectionIDs = new ArrayList<>();
-            for (int i: socketMap.keySet()) {
-                connectionIDs.add(i);
-            }
-            return connectionIDs;
-        }
+        private final IntList connections = new IntList();
+        private final IntList interestedPeers = new IntList();
 
-        public List<Integer> getInterestedConnections(List<Integer> connectionsList) {
-            List<Integer> interestedPeers = new ArrayList<>();
-            int i = 0;
-            while(i< connectionsList.size()){
-                int connection = connectionsList.get(i);
-                if (socketMap.get(connection).isInterested()) {
-                    interestedPeers.add(connection);
-                }
-                i++;
-            }
-            return interestedPeers;
-        }
         @Override
         public void run() {
-            while (peersCompleted < peerMap.size()) {
-                List<Integer> interestedPeers = getInterestedConnections(getConnectionIDs());
+            while (!isSwarmComplete()) {
+                getConnectionIDs(connections);
+                getInterestedConnections(connections, interestedPeers);
                 if (interestedPeers.size() > 0) {
-                    Random random = new Random();
-                    int someIndex = Math.abs(random.nextInt() % interestedPeers.size());
+                    int someIndex = ThreadLocalRandom.current().nextInt(interestedPeers.size());
 
                     PeerSocket getConnection = socketMap.get(interestedPeers.get(someIndex));
-                    getConnection.unChoke();
-                    getConnection.sendUnChokeMessage();
                     getConnection.optimisticallyUnchoke();
+                    if (getConnection.unChoke()) {
+                        FlightEvents.chokeDecision(getConnection.getPeerId(), false, "optimistic");
+                        getConnection.sendUnChokeMessage();
+                    }
                     logger.logInfo("Peer "+ currentPeerId +" has  the  optimistically  unchoked  neighbor  "+getConnection.getPeerId());
                     try {
                         Thread.sleep(configuration.getOptimisticUnchokingInterval() * 1000);
@@ -1132,6 +6763,12 @@ public class peerProcess {
                     finally {
                         System.out.println("Finished");
                     }
+                } else {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        System.out.println("Error");
+                    }
                 }
             }
             try {
@@ -1147,147 +6784,187 @@ public class peerProcess {
 
     private static class UnchokedPeer implements Runnable {
 
-        public List<Integer> getConnectionIDs() {
-            List<Integer> connectionIDs = new ArrayList<>();
-            for (int i: socketMap.keySet()) {
-                connectionIDs.add(i);
+        private final IntList connections = new IntList();
+        private final IntList candidates = new IntList();
+        private double[] rates = new double[16];
+        private int[] availability = new int[0];
+        private int lastRoundRobinPeer = Integer.MIN_VALUE;
+        private long lastRound = System.nanoTime();
+
+        public void getPeers_DownloadRate(IntList connectionsList, IntList connInterested) {
+            connInterested.clear();
+            for (int i = 0; i < connectionsList.size(); i++) {
+                int peer = connectionsList.get(i);
+                PeerSocket connectionObject = socketMap.get(peer);
+                if (connectionObject != null && connectionObject.isInterested() && connectionObject.getDownloadSpeed() >= 0)
+                    connInterested.add(peer);
+            }
+        }
+
+        private void ensureRateCapacity() {
+            if (rates.length < candidates.size()) {
+                rates = new double[Math.max(candidates.size(), rates.length * 2)];
             }
-            return connectionIDs;
         }
 
+        private void selectFastest(int k) {
+            ensureRateCapacity();
+            //A snubbed neighbour ranks below everyone who is actually delivering.
+            for (int i = 0; i < candidates.size(); i++) {
+                PeerSocket candidate = socketMap.get(candidates.get(i));
+                rates[i] = candidate.isSnubbed() ? -1 : candidate.getDownloadSpeed();
+            }
+            selectTop(k);
+        }
 
-        public List<Integer> getInterestedConnections(List<Integer> connectionsList) {
-            List<Integer> interestedPeers = new ArrayList<>();
-            int i = 0;
-            while(i< connectionsList.size()){
-                int conn = connectionsList.get(i);
-                PeerSocket peerSocket = socketMap.get(conn);
-                if (peerSocket.isInterested())
-                    interestedPeers.add(conn);
-                i++;
+        //Moves the k best-scored candidates to the front, keeping rates aligned with their peers.
+        private void selectTop(int k) {
+            for (int i = 0; i < k; i++) {
+                int best = i;
+                for (int j = i + 1; j < candidates.size(); j++) {
+                    if (rates[j] > rates[best]) best = j;
+                }
+                candidates.swap(i, best);
+                double rate = rates[i];
+                rates[i] = rates[best];
+                rates[best] = rate;
             }
-            return interestedPeers;
         }
 
-        public List<Integer> getPeers_DownloadRate(List<Integer> connectionsList) {
-            List<Integer> connInterested = new ArrayList<>();
-            for (int peer : connectionsList) {
-                PeerSocket connectionObject = socketMap.get(peer);
-                if (connectionObject.isInterested() && connectionObject.getDownloadSpeed() >= 0)
-                    connInterested.add(peer);
+        //Counts how many known peers other than us hold each piece.
+        private void countAvailability(int totalPieces, int words, long lastWordMask) {
+            if (availability.length != totalPieces) {
+                availability = new int[totalPieces];
+            }
+            Arrays.fill(availability, 0);
+            for (Peer peer : peerMap.values()) {
+                AtomicBitSet bitfield = peer.getBitField();
+                if (peer.getPeerId() == currentPeerId || bitfield == null) continue;
+                for (int w = 0; w < words; w++) {
+                    long held = bitfield.getWord(w);
+                    if (w == words - 1) held &= lastWordMask;
+                    while (held != 0) {
+                        availability[(w << 6) + Long.numberOfTrailingZeros(held)]++;
+                        held &= held - 1;
+                    }
+                }
+            }
+        }
+
+        //Seed mode: what we upload only helps the swarm if it is passed on, so peers that take data fastest rank first,
+        //weighted up by how much they still need and by how rare their missing pieces are: a piece no other peer holds
+        //counts in full, one held by a single other peer counts a half, and so on. A candidate never holds the pieces it
+        //is missing, so the counts need no correction for the candidate itself.
+        //The last slot rotates round-robin through everyone else so a newcomer with no measured rate still gets its turn.
+        private void selectForSpread(int k) {
+            ensureRateCapacity();
+            int totalPieces = currentPeer.getPiecesLength();
+            int words = currentPeer.getBitField().wordCount();
+            long lastWordMask = totalPieces % 64 == 0 ? -1L : (1L << (totalPieces % 64)) - 1;
+            countAvailability(totalPieces, words, lastWordMask);
+            for (int i = 0; i < candidates.size(); i++) {
+                PeerSocket candidate = socketMap.get(candidates.get(i));
+                AtomicBitSet bitfield = peerMap.get(candidates.get(i)).getBitField();
+                int missing = totalPieces;
+                double rarity = 0;
+                if (bitfield != null) {
+                    missing -= bitfield.cardinality();
+                    for (int w = 0; w < words; w++) {
+                        long lacking = ~bitfield.getWord(w);
+                        if (w == words - 1) lacking &= lastWordMask;
+                        while (lacking != 0) {
+                            rarity += 1.0 / (1 + availability[(w << 6) + Long.numberOfTrailingZeros(lacking)]);
+                            lacking &= lacking - 1;
+                        }
+                    }
+                } else {
+                    for (int piece = 0; piece < totalPieces; piece++) {
+                        rarity += 1.0 / (1 + availability[piece]);
+                    }
+                }
+                double demand = 1 + (missing + rarity) / (double) totalPieces;
+                rates[i] = (candidate.getUploadSpeed() + 1) * demand;
+            }
+            int ranked = k >= 2 ? k - 1 : k;
+            selectTop(ranked);
+            if (ranked < k) {
+                int next = -1;
+                int wrap = -1;
+                for (int i = ranked; i < candidates.size(); i++) {
+                    int id = candidates.get(i);
+                    if (id > lastRoundRobinPeer && (next == -1 || id < candidates.get(next))) next = i;
+                    if (wrap == -1 || id < candidates.get(wrap)) wrap = i;
+                }
+                int chosen = next != -1 ? next : wrap;
+                lastRoundRobinPeer = candidates.get(chosen);
+                candidates.swap(ranked, chosen);
+            }
+        }
+
+        //Unchokes the first k candidates and chokes the rest unless they hold the optimistic slot; returns how many changed.
+        private int applyPreferredNeighbors(int k) {
+            int changes = 0;
+            for (int i = 0; i < candidates.size(); i++) {
+                PeerSocket connectionObject = socketMap.get(candidates.get(i));
+                if (i < k) {
+                    if (connectionObject.unChoke()) {
+                        FlightEvents.chokeDecision(connectionObject.getPeerId(), false, "preferred");
+                        connectionObject.sendUnChokeMessage();
+                        changes++;
+                    }
+                } else if (!connectionObject.isOptimisticallyUnchoked() && connectionObject.chokeConnection()) {
+                    FlightEvents.chokeDecision(connectionObject.getPeerId(), true, "not preferred");
+                    connectionObject.sendChokeMessage();
+                    changes++;
+                }
             }
-            return connInterested;
+            return changes;
         }
 
         @Override
         public void run() {
 
-            while (peersCompleted < peerMap.size()) {
-                List<Integer> conns = getConnectionIDs();
+            while (!isSwarmComplete()) {
+                FlightEvents.ChokeRound round = new FlightEvents.ChokeRound();
+                round.begin();
+                int changes = 0;
+                getConnectionIDs(connections);
+                long now = System.nanoTime();
+                for (PeerSocket peerSocket : socketMap.values()) {
+                    peerSocket.sampleUploadSpeed((now - lastRound) / 1_000_000_000.0);
+                }
+                lastRound = now;
+                int preferred = configuration.getNumberOfPreferredNeighbors();
                 if (currentPeer.getHasFile() == 1) {
-                    List<Integer> interestedConnections = getInterestedConnections(conns);
-                    if (interestedConnections.size() <= 0) {
+                    getInterestedConnections(connections, candidates);
+                    if (candidates.size() <= 0) {
                         System.out.println("No more peers are interested.");
                     }else {
-                        if (interestedConnections.size() <= configuration.getNumberOfPreferredNeighbors()) {
-                            int i = 0;
-                            while(i< interestedConnections.size()){
-                                int peer = interestedConnections.get(i);
-                                PeerSocket tempConnection = socketMap.get(peer);
-                                if (tempConnection.getIsChoked()==true) {
-                                    tempConnection.unChoke();
-                                    tempConnection.sendUnChokeMessage();
-                                }
-                                i++;
-                            }
-                            System.out.println("Peer "+ currentPeerId +" has the preferred neighbors " + interestedConnections);
-                            logger.logInfo("Peer "+ currentPeerId +" has the preferred neighbors "+ interestedConnections);
-                        }
-                        else {
-                            int[] prefNeighbors = new int[configuration.getNumberOfPreferredNeighbors()];
-                            Random random = new Random();
-                            int i = 0;
-                            while(i< configuration.getNumberOfPreferredNeighbors()){
-                                int someIndex = Math.abs(random.nextInt() % interestedConnections.size());
-                                prefNeighbors[i] = interestedConnections.remove(someIndex);
-                            }
-                            i=0;
-                            while(i< configuration.getNumberOfPreferredNeighbors()){
-                                int tempId = prefNeighbors[i];
-                                PeerSocket connectionObject = socketMap.get(tempId);
-                                if (connectionObject.getIsChoked()) {
-                                    connectionObject.unChoke();
-                                    connectionObject.sendUnChokeMessage();
-                                }
-                                i++;
-                            }
-                            i=0;
-                            while(i<interestedConnections.size()){
-                                int peer = interestedConnections.get(i);
-                                PeerSocket connectionObject = socketMap.get(peer);
-                                boolean isChoked = connectionObject.getIsChoked(), isOpUnchoked = connectionObject.isOptimisticallyUnchoked();
-                                if (!isChoked && !isOpUnchoked) {
-                                    connectionObject.chokeConnection();
-                                    connectionObject.sendChokeMessage();
-                                }
-                                i++;
-                            }
-                            System.out.println("Peer "+ currentPeerId +" has the preferred neighbors "+ prefNeighbors);
-                            logger.logInfo("Peer "+ currentPeerId +" has the preferred neighbors "+ prefNeighbors );
-                        }
+                        int k = Math.min(preferred, candidates.size());
+                        selectForSpread(k);
+                        changes = applyPreferredNeighbors(k);
+                        System.out.println("Peer "+ currentPeerId +" has the preferred neighbors " + candidates.toString(k));
+                        logger.logInfo("Peer "+ currentPeerId +" has the preferred neighbors "+ candidates.toString(k));
                     }
                 }
                 else {
                     System.out.println("File does not exist in this peer.");
-                    List<Integer> peersInterested = getPeers_DownloadRate(conns);
-                    if (peersInterested.size() <= configuration.getNumberOfPreferredNeighbors()) {
-                        int i=0;
-                        while(i < peersInterested.size()) {
-                            int peer = peersInterested.get(i);
-                            PeerSocket connectionObject = socketMap.get(peer);
-                            if (connectionObject.getIsChoked() == true) {
-                                System.out.println("Sending chunks of existing file");
-                                connectionObject.unChoke();
-                                connectionObject.sendUnChokeMessage();
-                            }
-                            i++;
-                        }
-                    }
-                    else {
-                        int[] preferredNeighbors = new int[configuration.getNumberOfPreferredNeighbors()];
-                        HashMap<Integer,Double> m = new HashMap<>();
-                        CustomComparator comp =  new CustomComparator(m);
-                        TreeMap<Integer,Double> sortedMap = new TreeMap<>(comp);
-                        for(int i=0; i<peersInterested.size(); i++){
-                            m.put(peersInterested.get(i), socketMap.get(peersInterested.get(i)).getDownloadSpeed());
-                        }
-                        sortedMap.putAll(m);
-                        List<Integer> sortedPeers = new ArrayList<Integer>();
-                        sortedPeers.addAll(sortedMap.keySet());
-                        int i = 0;
-                        while(i< configuration.getNumberOfPreferredNeighbors()){
-                            int peer= sortedPeers.get(i);
-                            preferredNeighbors[i]= peer;
-                            PeerSocket neighborPeerSocket = socketMap.get(peer);
-                            if(neighborPeerSocket.getIsChoked()){
-                                neighborPeerSocket.unChoke();
-                                neighborPeerSocket.sendUnChokeMessage();
-                            }
-                            peersInterested.remove(peer);
-                            i++;
-                        }
-                        for(i=0;i<peersInterested.size();i++){
-                            int peer = peersInterested.get(i);
-                            PeerSocket tempConnection = socketMap.get(peer);
-                            if( tempConnection.getIsChoked() == false && tempConnection.isOptimisticallyUnchoked() == false){
-                                tempConnection.chokeConnection();
-                                tempConnection.sendChokeMessage();
-                            }
-                        }
-                        System.out.println("Preferred neighbours of node" + currentPeerId + " are " + preferredNeighbors);
-                        logger.logInfo("Preferred neighbours of node" + currentPeerId + " are " + preferredNeighbors);
+                    getPeers_DownloadRate(connections, candidates);
+                    int k = Math.min(preferred, candidates.size());
+                    selectFastest(k);
+                    changes = applyPreferredNeighbors(k);
+                    if (candidates.size() > preferred) {
+                        System.out.println("Preferred neighbours of node" + currentPeerId + " are " + candidates.toString(k));
+                        logger.logInfo("Preferred neighbours of node" + currentPeerId + " are " + candidates.toString(k));
                     }
-
+                }
+                round.end();
+                if (round.shouldCommit()) {
+                    round.seeding = currentPeer.getHasFile() == 1;
+                    round.candidates = candidates.size();
+                    round.preferred = Math.min(preferred, candidates.size());
+                    round.changes = changes;
+                    round.commit();
                 }
                 try {
                     Thread.sleep(configuration.getUnchokingInterval()*1000);
@@ -1296,6 +6973,14 @@ public class peerProcess {
                     exception.printStackTrace();
                 }
             }
+            if (streamConsumer != null) {
+                try {
+                    streamConsumer.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            logStatistics();
             System.exit(0);
         }
     }